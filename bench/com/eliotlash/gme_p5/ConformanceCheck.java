@@ -0,0 +1,329 @@
+package com.eliotlash.gme_p5;
+
+// Plays each synthetic file in two configurations and checks that they match sample for sample
+
+/* Each check runs a reference emulator and a candidate that differ only in
+a setting that mustn't change what's heard, such as a fast path being turned
+off. After each play() call it compares the samples produced, the CPU
+registers and the saved state of the two, and stops at the first difference,
+printing where it occurred and the state of both. It then replays that call
+from its start one stereo sample at a time, printing the samples and CPU
+registers of both up to the first sample that differs. Partway through, both
+seek ahead, so skipping is checked too. Input comes from SyntheticFiles, with
+GBS-halt being its gbsHalt() variant. Exits with status 1 if anything
+differed, so it can be run as part of a build.
+
+Usage:
+	java com.eliotlash.gme_p5.ConformanceCheck [seconds per file [name...]]
+
+Names are below; all run if none given. Apart from State, each compares a
+fast path against the slower, simpler way it replaces, which it can be
+turned off for.
+
+Direct      all memory accessed through cpuRead() and cpuWrite(), against
+            direct access (NSF, GBS, SPC)
+State       saved and restored with saveState() and loadState() after every
+            play() call, against playing straight through (all types)
+PollSkip    SPC timer-polling loops run every iteration, against skipped
+HaltWait    GBS HALT run again and again until play is due, against time
+            jumping there
+NoiseJump   silent GB noise clocked a step at a time, against jumping ahead
+FmQueue     YM2612 updated before each write, against writes queued for the
+            frame (VGM)
+Stream      VGM loaded whole, against played through loadStream() */
+
+final class ConformanceCheck
+{
+	// Setting to compare. load() loads file, apply() is called after loading
+	// and each seek, and played() after each play() call.
+	static class Config
+	{
+		final String name;
+		Config( String name ) { this.name = name; }
+		void load( MusicEmu emu, byte [] file ) throws java.io.IOException { emu.loadFile( file ); }
+		void apply( MusicEmu emu ) { }
+		void played( MusicEmu emu ) { }
+	}
+	
+	static final Config normal = new Config( "normal" );
+	
+	// Makes all memory go through cpuRead() and cpuWrite()
+	static final Config indirect = new Config( "indirect" ) {
+		void apply( MusicEmu emu )
+		{
+			if ( emu instanceof NesCpu )
+				((NesCpu) emu).setDirect( 0, 0x10000, false, false );
+			else if ( emu instanceof GbCpu )
+				((GbCpu) emu).setDirect( 0, 0x10000, false, false );
+			else if ( emu instanceof SpcCpu )
+				((SpcCpu) emu).setDirect( 0, 0x10000, false, false );
+		}
+	};
+	
+	static final Config restored = new Config( "restored" ) {
+		void played( MusicEmu emu ) { emu.loadState( emu.saveState() ); }
+	};
+	
+	static final Config polling = new Config( "polling" ) {
+		void apply( MusicEmu emu ) { ((SpcCpu) emu).skipPolls = false; }
+	};
+	
+	static final Config halting = new Config( "halting" ) {
+		void apply( MusicEmu emu ) { ((GbsEmu) emu).haltWait = false; }
+	};
+	
+	static final Config stepped = new Config( "stepped" ) {
+		void apply( MusicEmu emu ) { ((GbsEmu) emu).apu.noise.jump = false; }
+	};
+	
+	static final Config perWrite = new Config( "per-write" ) {
+		void apply( MusicEmu emu ) { ((VgmEmu) emu).queueFM = false; }
+	};
+	
+	static final Config streamed = new Config( "streamed" ) {
+		void load( MusicEmu emu, final byte [] file ) throws java.io.IOException
+		{
+			((VgmEmu) emu).loadStream( new VgmStream.Source() {
+				public java.io.InputStream open() { return new java.io.ByteArrayInputStream( file ); }
+			} );
+		}
+	};
+	
+	// Configurations to compare, on given types of file
+	static final class Check
+	{
+		final String name;
+		final String [] types;
+		final Config ref;
+		final Config cand;
+		
+		Check( String name, String [] types, Config ref, Config cand )
+		{
+			this.name  = name;
+			this.types = types;
+			this.ref   = ref;
+			this.cand  = cand;
+		}
+	}
+	
+	static final Check [] checks = {
+		new Check( "Direct",    new String [] { "NSF", "GBS", "GBS-halt", "SPC" },        indirect, normal ),
+		new Check( "State",     new String [] { "NSF", "GBS", "GBS-halt", "SPC", "VGM" }, normal,   restored ),
+		new Check( "PollSkip",  new String [] { "SPC" },                                  polling,  normal ),
+		new Check( "HaltWait",  new String [] { "GBS-halt" },                             halting,  normal ),
+		new Check( "NoiseJump", new String [] { "GBS", "GBS-halt" },                      stepped,  normal ),
+		new Check( "FmQueue",   new String [] { "VGM" },                                  perWrite, normal ),
+		new Check( "Stream",    new String [] { "VGM" },                                  normal,   streamed ),
+	};
+	
+	static final int blockSize = 1024; // samples per play() call
+	
+	public static void main( String [] args ) throws java.io.IOException
+	{
+		double seconds = (args.length > 0 ? Double.parseDouble( args [0] ) : 60.0);
+		int failed = 0;
+		int run    = 0;
+		for ( int i = 0; i < checks.length; i++ )
+		{
+			if ( !selected( checks [i].name, args ) )
+				continue;
+			
+			for ( int t = 0; t < checks [i].types.length; t++ )
+			{
+				run++;
+				if ( !compare( checks [i], checks [i].types [t], seconds ) )
+					failed++;
+			}
+		}
+		
+		System.out.println( (run - failed) + " of " + run + " matched" );
+		if ( failed > 0 || run == 0 )
+			System.exit( 1 );
+	}
+	
+	// True if name is among those given after the first argument, or none are given
+	static boolean selected( String name, String [] args )
+	{
+		for ( int i = 1; i < args.length; i++ )
+			if ( name.equalsIgnoreCase( args [i] ) )
+				return true;
+		return args.length <= 1;
+	}
+	
+	// Synthetic file of given type, or GBS-halt for gbsHalt()
+	static byte [] file( String name )
+	{
+		if ( name.equals( "GBS-halt" ) )
+			return SyntheticFiles.gbsHalt();
+		return SyntheticFiles.ofType( name );
+	}
+	
+	static MusicEmu create( String name, Config config ) throws java.io.IOException
+	{
+		MusicEmu emu = MusicEmu.createEmuOfType( name.substring( 0, 3 ) );
+		emu.setSampleRate( 44100 );
+		config.load( emu, file( name ) );
+		emu.startTrack( 0 );
+		config.apply( emu );
+		return emu;
+	}
+	
+	// Plays named file in check's two configurations and returns true if they
+	// matched throughout, otherwise prints the first difference
+	static boolean compare( Check check, String file, double seconds ) throws java.io.IOException
+	{
+		final String name = check.name + " " + file + " (" + check.ref.name + " vs " + check.cand.name + ")";
+		final MusicEmu ref  = create( file, check.ref );
+		final MusicEmu cand = create( file, check.cand );
+		final short [] refOut  = new short [blockSize];
+		final short [] candOut = new short [blockSize];
+		
+		final long total = (long) (seconds * ref.sampleRate()) * 2;
+		long pos = 0;
+		boolean sought = false;
+		while ( pos < total && !ref.trackEnded() )
+		{
+			if ( !sought && pos >= total / 3 )
+			{
+				// seek both 5 seconds ahead
+				sought = true;
+				int msec = ref.tell() + 5000;
+				ref .seek( msec );
+				cand.seek( msec );
+				check.ref .apply( ref );
+				check.cand.apply( cand );
+			}
+			
+			final byte [] refStart  = ref .saveState();
+			final byte [] candStart = cand.saveState();
+			final int refCount  = ref .play( refOut,  blockSize );
+			final int candCount = cand.play( candOut, blockSize );
+			check.ref .played( ref );
+			check.cand.played( cand );
+			
+			String problem = null;
+			int at = mismatch( refOut, candOut, Math.min( refCount, candCount ) );
+			if ( at >= 0 )
+				problem = "sample " + (pos + at) + " (" + sampleTime( ref, pos + at ) + ") is " +
+						refOut [at] + " vs " + candOut [at];
+			else if ( refCount != candCount )
+				problem = "play() returned " + refCount + " vs " + candCount + " samples";
+			else if ( ref.trackEnded() != cand.trackEnded() )
+				problem = "track ended " + ref.trackEnded() + " vs " + cand.trackEnded();
+			else if ( !registers( ref ).equals( registers( cand ) ) )
+				problem = "registers differ";
+			else if ( (at = mismatch( ref.saveState(), cand.saveState() )) >= 0 )
+				problem = "saved state differs at byte " + at;
+			
+			if ( problem != null )
+			{
+				System.out.println( "FAILED " + name + ": " + problem );
+				System.out.println( "  in play() call ending at sample " + (pos + refCount) +
+						" (" + sampleTime( ref, pos + refCount ) + ")" );
+				System.out.println( "  " + pad( check.ref.name  ) + registers( ref ) );
+				System.out.println( "  " + pad( check.cand.name ) + registers( cand ) );
+				trace( check, ref, cand, refStart, candStart, pos, refCount );
+				return false;
+			}
+			pos += refCount;
+		}
+		
+		System.out.println( "ok     " + name + ": " + pos + " samples" );
+		return true;
+	}
+	
+	// Restores both to saved states and plays count samples from there a stereo
+	// sample at a time, printing the last few samples and registers of both up to
+	// the first sample that differs. Lines whose registers are the same as the
+	// line before are left out, except the last.
+	static void trace( Check check, MusicEmu ref, MusicEmu cand,
+			byte [] refState, byte [] candState, long pos, int count )
+	{
+		final int maxLines = 24;
+		ref .loadState( refState );
+		cand.loadState( candState );
+		
+		final java.util.ArrayDeque<String> lines = new java.util.ArrayDeque<String>();
+		final short [] refOut  = new short [2];
+		final short [] candOut = new short [2];
+		String last = null;
+		for ( int i = 0; i < count; i += 2 )
+		{
+			int refCount  = ref .play( refOut,  2 );
+			int candCount = cand.play( candOut, 2 );
+			check.ref .played( ref );
+			check.cand.played( cand );
+			
+			boolean differs = (refCount != candCount || mismatch( refOut, candOut, 2 ) >= 0);
+			String regs = registers( ref ) + " | " + registers( cand );
+			if ( regs.equals( last ) && !differs && i + 2 < count )
+				continue;
+			last = regs;
+			
+			lines.addLast( String.format( "  %9d %6d %6d | %6d %6d   %s", pos + i,
+					refOut [0], refOut [1], candOut [0], candOut [1], regs ) );
+			if ( lines.size() > maxLines )
+				lines.removeFirst();
+			if ( differs )
+				break;
+		}
+		
+		System.out.println( "  trace from sample " + pos + ", " + check.ref.name + " | " + check.cand.name + ":" );
+		for ( String line : lines )
+			System.out.println( line );
+	}
+	
+	// Index of first element that differs within first count, or -1 if none
+	static int mismatch( short [] x, short [] y, int count )
+	{
+		for ( int i = 0; i < count; i++ )
+			if ( x [i] != y [i] )
+				return i;
+		return -1;
+	}
+	
+	// Index of first byte that differs, or -1 if arrays are the same
+	static int mismatch( byte [] x, byte [] y )
+	{
+		int n = Math.min( x.length, y.length );
+		for ( int i = 0; i < n; i++ )
+			if ( x [i] != y [i] )
+				return i;
+		return (x.length != y.length ? n : -1);
+	}
+	
+	// Stereo sample position as seconds into track
+	static String sampleTime( MusicEmu emu, long pos )
+	{
+		return String.format( "%.3f sec", pos / 2 / (double) emu.sampleRate() );
+	}
+	
+	static String pad( String s )
+	{
+		return String.format( "%-12s", s + ":" );
+	}
+	
+	// CPU registers and time, or empty if emulator has no CPU of its own
+	static String registers( MusicEmu emu )
+	{
+		if ( emu instanceof NesCpu )
+		{
+			NesCpu c = (NesCpu) emu;
+			return String.format( "PC=%04X A=%02X X=%02X Y=%02X P=%02X S=%02X time=%d",
+					c.pc, c.a, c.x, c.y, c.p, c.s, c.time );
+		}
+		if ( emu instanceof GbCpu )
+		{
+			GbCpu c = (GbCpu) emu;
+			return String.format( "PC=%04X SP=%04X A=%02X BC=%04X DE=%04X HL=%04X time=%d",
+					c.pc, c.sp, c.a, c.bc, c.de, c.hl, c.time );
+		}
+		if ( emu instanceof SpcCpu )
+		{
+			SpcCpu c = (SpcCpu) emu;
+			return String.format( "PC=%04X A=%02X X=%02X Y=%02X PSW=%02X SP=%02X time=%d",
+					c.pc, c.a, c.x, c.y, c.psw & 0xFF, c.sp, c.time );
+		}
+		return "";
+	}
+}
@@ -0,0 +1,249 @@
+package com.eliotlash.gme_p5;
+
+// Measures synthesis speed and allocation rate of each emulator and of the output stages
+
+/* Runs each benchmark on the calling thread for a warm-up period, then for
+a measured period, and prints samples per second (so per core), speed as a
+multiple of real time, and bytes allocated per second. Input comes from
+SyntheticFiles, so results are repeatable and need no music rips.
+
+Usage:
+	java com.eliotlash.gme_p5.EmuBenchmark [seconds per benchmark [name...]]
+
+Names are NSF, GBS, SPC, VGM, StereoBuffer, Fade, FadeFloat, FmInit and Mixed;
+all run if none given. FmInit reports time and heap allocated per YM2612 created
+and initialized, as VgmEmu does for each file loaded. Mixed plays NSF, GBS and
+SPC in turn on one thread, as a player of mixed formats would, and reports the
+speed of each along with CPU clocks run per second. Time the CPU skips over
+while idle isn't counted, so this follows the rate at which instructions are
+run. Run it alone to compare with a single format run
+alone. */
+
+import java.lang.management.ManagementFactory;
+
+final class EmuBenchmark
+{
+	// One thing to measure. run() does a unit of work and returns number of samples produced.
+	static abstract class Bench
+	{
+		final String name;
+		int sampleRate = 44100;
+		Bench( String name ) { this.name = name; }
+		abstract int run();
+	}
+	
+	static final int blockSize = 4096; // samples per play() call
+	
+	// Plays synthetic file of given type
+	static Bench emu( final String type )
+	{
+		final MusicEmu emu = MusicEmu.createEmuOfType( type );
+		final short [] out = new short [blockSize];
+		Bench b = new Bench( type ) {
+			int run()
+			{
+				if ( emu.trackEnded() || emu.currentTime() > 600 )
+					emu.startTrack( 0 );
+				return emu.play( out, blockSize );
+			}
+		};
+		b.sampleRate = emu.setSampleRate( 44100 );
+		emu.loadFile( SyntheticFiles.ofType( type ) );
+		emu.startTrack( 0 );
+		return b;
+	}
+	
+	// Reads from StereoBuffer holding a square wave on all three channels
+	static Bench stereoBuffer()
+	{
+		final StereoBuffer buf = new StereoBuffer();
+		buf.setSampleRate( 44100, 1000 / ClassicEmu.bufLength );
+		buf.setClockRate( 1789773 );
+		final int clocks = buf.clockRate() / 1000 * 20; // 20 msec
+		final short [] out = new short [blockSize];
+		return new Bench( "StereoBuffer" ) {
+			int amp = 1000;
+			int run()
+			{
+				for ( int t = 0; t < clocks; t += 400 )
+				{
+					buf.center().addDelta( t, amp );
+					buf.left  ().addDelta( t, amp );
+					buf.right ().addDelta( t, amp );
+					amp = -amp;
+				}
+				buf.endFrame( clocks );
+				int total = 0;
+				for ( int n; (n = buf.readSamples( out, 0, blockSize )) > 0; )
+					total += n;
+				return total;
+			}
+		};
+	}
+	
+	// Fades constant-level output of an emulator that does nothing else,
+	// as 16-bit samples or, if floats is true, as floats
+	static Bench fade( final boolean floats )
+	{
+		final MusicEmu emu = new MusicEmu() {
+			protected int play_( short [] out, int count )
+			{
+				java.util.Arrays.fill( out, 0, count, (short) 0x4000 );
+				return count;
+			}
+		};
+		emu.setSampleRate( 44100 );
+		final short [] out = new short [blockSize];
+		final float [] fout = new float [blockSize];
+		return new Bench( floats ? "FadeFloat" : "Fade" ) {
+			int run()
+			{
+				if ( emu.trackEnded() || emu.currentTime() > 1000 )
+				{
+					emu.startTrack( 0 );
+					emu.setFade( 0, 2000 );
+				}
+				return (floats ? emu.play( fout, blockSize ) : emu.play( out, blockSize ));
+			}
+		};
+	}
+	
+	static Bench create( String name )
+	{
+		if ( name.equalsIgnoreCase( "StereoBuffer" ) )
+			return stereoBuffer();
+		if ( name.equalsIgnoreCase( "Fade" ) )
+			return fade( false );
+		if ( name.equalsIgnoreCase( "FadeFloat" ) )
+			return fade( true );
+		return emu( name.toUpperCase() );
+	}
+	
+	static final String [] all = { "NSF", "GBS", "SPC", "VGM", "StereoBuffer", "Fade", "FadeFloat", "FmInit", "Mixed" };
+	
+	public static void main( String [] args )
+	{
+		double seconds = (args.length > 0 ? Double.parseDouble( args [0] ) : 5.0);
+		String [] names = all;
+		if ( args.length > 1 )
+		{
+			names = new String [args.length - 1];
+			System.arraycopy( args, 1, names, 0, names.length );
+		}
+		
+		System.out.println( "benchmark        samples/sec  x real time   alloc bytes/sec" );
+		for ( int i = 0; i < names.length; i++ )
+		{
+			if ( names [i].equalsIgnoreCase( "FmInit" ) )
+				reportFmInit( seconds );
+			else if ( names [i].equalsIgnoreCase( "Mixed" ) )
+				reportMixed( seconds );
+			else
+				report( create( names [i] ), seconds );
+		}
+	}
+	
+	static void reportFmInit( double seconds )
+	{
+		final long limit = (long) (seconds * 1.0e9);
+		YM2612 fm = null;
+		for ( int pass = 0; pass < 2; pass++ ) // first pass is warm-up
+		{
+			long count = 0;
+			final long alloc = allocatedBytes();
+			final long start = System.nanoTime();
+			long now;
+			do
+			{
+				fm = new YM2612();
+				fm.init( 7670453, 44100 );
+				count++;
+			}
+			while ( (now = System.nanoTime()) - start < limit / 2 );
+			
+			if ( pass > 0 )
+				System.out.println( String.format( "%-14s %10.1f usec/init %10d bytes/init",
+						"FmInit", (now - start) / 1000.0 / count,
+						(allocatedBytes() - alloc) / count ) );
+		}
+	}
+	
+	static void reportMixed( double seconds )
+	{
+		final String [] types = { "NSF", "GBS", "SPC" };
+		final Bench [] b = new Bench [types.length];
+		for ( int i = 0; i < b.length; i++ )
+			b [i] = emu( types [i] );
+		
+		final boolean wasEnabled = Metrics.isEnabled();
+		Metrics.setEnabled( true );
+		final long limit = (long) (seconds * 1.0e9);
+		for ( int pass = 0; pass < 2; pass++ ) // first pass is warm-up
+		{
+			// samples, nanoseconds and CPU clocks of each
+			final long [] [] r = new long [b.length] [3];
+			final long start = System.nanoTime();
+			do
+			{
+				for ( int i = 0; i < b.length; i++ )
+				{
+					final long clocks = Metrics.total( Metrics.cpuClocks );
+					final long t = System.nanoTime();
+					for ( int n = 0; n < 16; n++ )
+						r [i] [0] += b [i].run();
+					r [i] [1] += System.nanoTime() - t;
+					r [i] [2] += Metrics.total( Metrics.cpuClocks ) - clocks;
+				}
+			}
+			while ( System.nanoTime() - start < (pass > 0 ? limit : limit / 2) );
+			
+			for ( int i = 0; pass > 0 && i < b.length; i++ )
+			{
+				double sec = r [i] [1] / 1.0e9;
+				double rate = r [i] [0] / 2 / sec;
+				System.out.println( String.format( "%-14s %13.0f %12.1f %11.2f Mclocks/sec",
+						"Mixed " + b [i].name, rate, rate / b [i].sampleRate, r [i] [2] / sec / 1.0e6 ) );
+			}
+		}
+		Metrics.setEnabled( wasEnabled );
+	}
+	
+	static void report( Bench b, double seconds )
+	{
+		measure( b, seconds / 2 ); // warm up
+		long [] r = measure( b, seconds );
+		double sec = r [1] / 1.0e9;
+		double rate = r [0] / 2 / sec; // stereo pairs
+		System.out.println( String.format( "%-14s %13.0f %12.1f %17.0f",
+				b.name, rate, rate / b.sampleRate, r [2] / sec ) );
+	}
+	
+	// Returns samples produced, nanoseconds taken, and bytes allocated
+	static long [] measure( Bench b, double seconds )
+	{
+		final long [] r = new long [3];
+		final long limit = (long) (seconds * 1.0e9);
+		final long alloc = allocatedBytes();
+		final long start = System.nanoTime();
+		long now;
+		do
+		{
+			for ( int i = 0; i < 16; i++ )
+				r [0] += b.run();
+		}
+		while ( (now = System.nanoTime()) - start < limit );
+		r [1] = now - start;
+		r [2] = allocatedBytes() - alloc;
+		return r;
+	}
+	
+	// Bytes allocated so far by current thread, or 0 if JVM can't report it
+	static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if ( mx instanceof com.sun.management.ThreadMXBean )
+			return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(
+					Thread.currentThread().getId() );
+		return 0;
+	}
+}
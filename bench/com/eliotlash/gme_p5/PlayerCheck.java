@@ -0,0 +1,124 @@
+package com.eliotlash.gme_p5;
+
+// Checks that VGMPlayer starts a queued track whose sample rate differs from the current one
+
+/* Plays a synthetic NSF (44100 Hz) that fades out after a second, with a
+synthetic SPC (32000 Hz) queued after it, so the player must wait for output
+of the first to finish, then reopen the line at the new rate. Output goes to
+a line that accepts samples as fast as they're written, so this needs no
+sound hardware and runs faster than real time. Exits with status 1 if the
+queued track doesn't start within the time limit.
+
+Usage:
+	java com.eliotlash.gme_p5.PlayerCheck [seconds to wait] */
+
+import javax.sound.sampled.*;
+
+final class PlayerCheck
+{
+	public static void main( String [] args ) throws Exception
+	{
+		double seconds = (args.length > 0 ? Double.parseDouble( args [0] ) : 20.0);
+		
+		final Object lock = new Object();
+		final boolean [] started = new boolean [1];
+		VGMPlayer player = new VGMPlayer( 44100, null ) {
+			byte [] readFileFromPath( String path )
+			{
+				return SyntheticFiles.ofType( path.substring( path.lastIndexOf( '.' ) + 1 ).toUpperCase() );
+			}
+			
+			SourceDataLine getSourceDataLine( AudioFormat format, int bufferSize )
+			{
+				return new NullLine( format, bufferSize );
+			}
+			
+			protected void nextStarted()
+			{
+				super.nextStarted();
+				synchronized ( lock )
+				{
+					started [0] = true;
+					lock.notifyAll();
+				}
+			}
+		};
+		
+		player.loadFileFromPath( "first.nsf" );
+		player.startTrack( 0, 1 );
+		player.queueFileFromPath( "second.spc", 0, -1 );
+		
+		long limit = System.currentTimeMillis() + (long) (seconds * 1000);
+		synchronized ( lock )
+		{
+			for ( long now; !started [0] && (now = System.currentTimeMillis()) < limit; )
+				lock.wait( limit - now );
+		}
+		
+		// started track must reach the line at its own rate
+		float rate = 0;
+		while ( started [0] && rate != 32000 && System.currentTimeMillis() < limit )
+		{
+			AudioFormat f = player.lineFormat;
+			if ( f != null && player.isPlaying() )
+				rate = f.getSampleRate();
+			Thread.sleep( 10 );
+		}
+		
+		if ( !started [0] || rate != 32000 )
+		{
+			System.out.println( "FAILED queued 32000 Hz track " +
+					(started [0] ? "started, but line is at " + rate + " Hz" : "never started") );
+			System.exit( 1 );
+		}
+		System.out.println( "ok     queued 32000 Hz track started after 44100 Hz track" );
+		player.stop();
+	}
+	
+	// Line that discards whatever is written to it, immediately. Only
+	// drain() takes time.
+	static final class NullLine implements SourceDataLine
+	{
+		final AudioFormat format;
+		final int bufferSize;
+		boolean open = true;
+		boolean running;
+		
+		NullLine( AudioFormat format, int bufferSize )
+		{
+			this.format     = format;
+			this.bufferSize = bufferSize;
+		}
+		
+		public int write( byte [] b, int off, int len ) { return len; }
+		public void open( AudioFormat f, int size ) { open = true; }
+		public void open( AudioFormat f ) { open = true; }
+		public void open() { open = true; }
+		public void close() { open = false; }
+		public boolean isOpen() { return open; }
+		public void start() { running = true; }
+		public void stop() { running = false; }
+		public boolean isRunning() { return running; }
+		public boolean isActive() { return running; }
+		public void drain()
+		{
+			// as a real line does while its buffer plays
+			try { Thread.sleep( 100 ); } catch ( InterruptedException e ) { }
+		}
+		
+		public void flush() { }
+		public AudioFormat getFormat() { return format; }
+		public int getBufferSize() { return bufferSize; }
+		public int available() { return bufferSize; }
+		public int getFramePosition() { return 0; }
+		public long getLongFramePosition() { return 0; }
+		public long getMicrosecondPosition() { return 0; }
+		public float getLevel() { return AudioSystem.NOT_SPECIFIED; }
+		public Line.Info getLineInfo() { return new DataLine.Info( SourceDataLine.class, format ); }
+		public Control [] getControls() { return new Control [0]; }
+		public boolean isControlSupported( Control.Type type ) { return false; }
+		public Control getControl( Control.Type type ) { return null; }
+		public void addLineListener( LineListener l ) { }
+		public void removeLineListener( LineListener l ) { }
+	}
+}
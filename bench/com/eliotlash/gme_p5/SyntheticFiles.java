@@ -0,0 +1,316 @@
+package com.eliotlash.gme_p5;
+
+// Generates small music files for each supported format, for use as fixed benchmark input
+
+/* Each file contains a short hand-assembled program that sets up the sound
+chip and then keeps changing its registers, so the CPU, sound chip and
+synthesis paths are all exercised. Nothing here is copied from a real rip. */
+
+final class SyntheticFiles
+{
+	// Nintendo NSF: square, triangle and noise, pitch swept from play routine
+	static byte [] nsf()
+	{
+		byte [] f = new byte [0x80 + 0x100];
+		putString( f, 0, "NESM\u001A" );
+		f [0x05] = 1; // version
+		f [0x06] = 1; // track count
+		f [0x07] = 1; // first track
+		putLE16( f, 0x08, 0x8000 ); // load
+		putLE16( f, 0x0A, 0x8000 ); // init
+		putLE16( f, 0x0C, 0x8040 ); // play
+		putString( f, 0x0E, "Synthetic" );
+		putLE16( f, 0x6E, 0x411A ); // NTSC rate
+		
+		final int [] init = {
+			0xA9,0x0F, 0x8D,0x15,0x40, // LDA #$0F  STA $4015
+			0xA9,0xBF, 0x8D,0x00,0x40, // square: duty, constant volume 15
+			0xA9,0x08, 0x8D,0x01,0x40, // sweep off
+			0xA9,0xFD, 0x8D,0x02,0x40, // period low
+			0xA9,0x00, 0x8D,0x03,0x40, // period high, start
+			0xA9,0x81, 0x8D,0x08,0x40, // triangle linear counter
+			0xA9,0x50, 0x8D,0x0A,0x40,
+			0xA9,0x08, 0x8D,0x0B,0x40,
+			0xA9,0x3F, 0x8D,0x0C,0x40, // noise constant volume 15
+			0xA9,0x05, 0x8D,0x0E,0x40,
+			0xA9,0x08, 0x8D,0x0F,0x40,
+			0x60                       // RTS
+		};
+		final int [] play = {
+			0xE6,0x00,                 // INC $00
+			0xA5,0x00,                 // LDA $00
+			0x8D,0x02,0x40,            // STA $4002
+			0x8D,0x0A,0x40,            // STA $400A
+			0x29,0x1F,                 // AND #$1F
+			0xD0,0x05,                 // BNE +5
+			0xA9,0x00, 0x8D,0x03,0x40, // restart square
+			0xA2,0xC8,                 // LDX #200
+			0xCA,                      // DEX
+			0xD0,0xFD,                 // BNE -3
+			0x60                       // RTS
+		};
+		putBytes( f, 0x80, init );
+		putBytes( f, 0x80 + 0x40, play );
+		return f;
+	}
+	
+	// Nintendo Game Boy GBS: square and noise, pitch swept from play routine
+	static byte [] gbs() { return gbs( false ); }
+	
+	// Same, but init waits in HALT rather than returning, and play switches
+	// noise between short periods and widths and mutes it half the time, so
+	// waiting out a HALT and clocking silent noise are exercised
+	static byte [] gbsHalt() { return gbs( true ); }
+	
+	private static byte [] gbs( boolean halt )
+	{
+		final int load = 0x400;
+		byte [] f = new byte [0x70 + 0x80];
+		putString( f, 0, "GBS\u0001" );
+		f [0x04] = 1; // track count
+		f [0x05] = 1; // first track
+		putLE16( f, 0x06, load );        // load
+		putLE16( f, 0x08, load );        // init
+		putLE16( f, 0x0A, load + 0x40 ); // play
+		putLE16( f, 0x0C, 0xFFFE );      // stack
+		putString( f, 0x10, "Synthetic" );
+		
+		final int [] init = {
+			0x3E,0x80, 0xE0,0x26, // LD A,$80  LDH ($26),A  power on
+			0x3E,0x77, 0xE0,0x24, // master volume
+			0x3E,0xFF, 0xE0,0x25, // panning
+			0x3E,0x80, 0xE0,0x11, // square 1 duty
+			0x3E,0xF0, 0xE0,0x12, // volume 15
+			0x3E,0x00, 0xE0,0x13,
+			0x3E,0x87, 0xE0,0x14, // frequency high, trigger
+			0x3E,0xF0, 0xE0,0x21, // noise volume 15
+			0x3E,0x55, 0xE0,0x22,
+			0x3E,0x80, 0xE0,0x23, // trigger
+			0xC9                  // RET
+		};
+		final int [] wait = {
+			0x76,                 // HALT
+			0x18,0xFD             // JR -3
+		};
+		final int [] play = {
+			0xFA,0x00,0xC0,       // LD A,($C000)
+			0x3C,                 // INC A
+			0xEA,0x00,0xC0,       // LD ($C000),A
+			0xE0,0x13,            // LDH ($13),A
+			0x06,0xC8,            // LD B,200
+			0x05,                 // DEC B
+			0x20,0xFD,            // JR NZ,-3
+			0xE6,0x0F,            // AND $0F
+			0x20,0x04,            // JR NZ,+4
+			0x3E,0x87, 0xE0,0x14, // retrigger square
+			0xC9                  // RET
+		};
+		final int [] noise = {
+			0xFA,0x00,0xC0,       // LD A,($C000)
+			0xE6,0x18,            // AND $18
+			0xE0,0x22,            // LDH ($22),A  period 8 or 16, 15 or 7 bits
+			0xE6,0x10,            // AND $10
+			0x3E,0xFF,            // LD A,$FF
+			0x28,0x02,            // JR Z,+2
+			0x3E,0x77,            // LD A,$77  noise off both sides
+			0xE0,0x25,            // LDH ($25),A
+			0xC9                  // RET
+		};
+		putBytes( f, 0x70, init );
+		putBytes( f, 0x70 + 0x40, play );
+		if ( halt )
+		{
+			// replace RETs at ends
+			putBytes( f, 0x70 + init.length - 1, wait );
+			putBytes( f, 0x70 + 0x40 + play.length - 1, noise );
+		}
+		return f;
+	}
+	
+	// Nintendo SPC: one looped BRR voice with echo, pitch changed on each timer tick
+	static byte [] spc()
+	{
+		final int ram = 0x100;
+		final int dsp = 0x10100;
+		byte [] f = new byte [0x10200];
+		putString( f, 0, "SNES-SPC700 Sound File Data v0.30" );
+		f [0x21] = 0x1A;
+		f [0x22] = 0x1A;
+		f [0x23] = 27; // no ID666 tag
+		f [0x24] = 30;
+		
+		// CPU registers
+		putLE16( f, 0x25, 0x0400 ); // PC
+		f [0x2A] = 0x02;            // PSW
+		f [0x2B] = (byte) 0xEF;     // SP
+		
+		final int [] code = {
+			0x8F,0x10,0xFA, // MOV $FA,#$10  timer 0 period
+			0x8F,0x01,0xF1, // MOV $F1,#$01  enable timer 0
+			0xE4,0xFD,      // MOV A,$FD     poll timer 0
+			0xF0,0xFC,      // BEQ -4
+			0xAB,0x00,      // INC $00
+			0xE4,0x00,      // MOV A,$00
+			0x8F,0x02,0xF2, // MOV $F2,#$02  voice 0 pitch low
+			0xC4,0xF3,      // MOV $F3,A
+			0x2F,0xF1       // BRA -15
+		};
+		putBytes( f, ram + 0x400, code );
+		
+		// sample directory at $0200, one looped BRR block at $1000
+		putLE16( f, ram + 0x200, 0x1000 );
+		putLE16( f, ram + 0x202, 0x1000 );
+		final int [] brr = { 0xB3, 0x77,0x77,0x77,0x77, 0x99,0x99,0x99,0x99 };
+		putBytes( f, ram + 0x1000, brr );
+		
+		// DSP registers
+		f [dsp + 0x00] = 0x40; // voice 0 volume
+		f [dsp + 0x01] = 0x40;
+		f [dsp + 0x03] = 0x04; // pitch
+		f [dsp + 0x07] = 0x7F; // direct gain
+		f [dsp + 0x0C] = 0x7F; // main volume
+		f [dsp + 0x1C] = 0x7F;
+		f [dsp + 0x2C] = 0x20; // echo volume
+		f [dsp + 0x3C] = 0x20;
+		f [dsp + 0x0D] = 0x40; // echo feedback
+		f [dsp + 0x0F] = 0x7F; // echo FIR
+		f [dsp + 0x4C] = 0x01; // key on voice 0
+		f [dsp + 0x4D] = 0x01; // echo on voice 0
+		f [dsp + 0x5D] = 0x02; // sample directory
+		f [dsp + 0x6D] = (byte) 0x80; // echo buffer at $8000
+		f [dsp + 0x7D] = 0x02; // echo delay
+		return f;
+	}
+	
+	// Sega VGM: six FM channels, PSG tone and PCM through the DAC, looped
+	static byte [] vgm()
+	{
+		ByteList d = new ByteList();
+		for ( int i = 0; i < 0x40; i++ )
+			d.add( 0 );
+		
+		// FM voices: algorithm 7 so every operator is heard
+		for ( int port = 0; port < 2; port++ )
+		{
+			int cmd = 0x52 + port;
+			for ( int ch = 0; ch < 3; ch++ )
+			{
+				d.add( cmd, 0xB0 + ch, 0x07 );
+				d.add( cmd, 0xB4 + ch, 0xC0 );
+				for ( int op = 0; op < 16; op += 4 )
+				{
+					d.add( cmd, 0x30 + op + ch, 0x01 );
+					d.add( cmd, 0x40 + op + ch, 0x18 );
+					d.add( cmd, 0x50 + op + ch, 0x1F );
+					d.add( cmd, 0x60 + op + ch, 0x05 );
+					d.add( cmd, 0x70 + op + ch, 0x02 );
+					d.add( cmd, 0x80 + op + ch, 0x1F );
+				}
+			}
+		}
+		d.add( 0x52, 0x2B, 0x80 ); // DAC on
+		d.add( 0x50, 0x8E );       // PSG tone 0
+		d.add( 0x50, 0x0F );
+		d.add( 0x50, 0x92 );       // PSG volume 0
+		
+		// PCM data block: one saw cycle
+		d.add( 0x67, 0x66, 0x00 );
+		d.addLE32( 256 );
+		for ( int i = 0; i < 256; i++ )
+			d.add( i );
+		
+		// Loop: 60 frames, each with FM pitch changes, key on/off and PCM
+		final int loop = d.size();
+		for ( int frame = 0; frame < 60; frame++ )
+		{
+			d.add( 0xE0 );
+			d.addLE32( 0 );
+			for ( int ch = 0; ch < 6; ch++ )
+			{
+				int cmd = 0x52 + ch / 3;
+				int fnum = 0x269 + frame * 7 + ch * 31;
+				d.add( cmd, 0xA4 + ch % 3, 0x20 | fnum >> 8 );
+				d.add( cmd, 0xA0 + ch % 3, fnum & 0xFF );
+				int key = (ch < 3 ? ch : ch + 1);
+				d.add( 0x52, 0x28, ((frame & 3) != 0 ? 0xF0 : 0x00) | key );
+			}
+			d.add( 0x50, 0x80 | frame & 0x0F );
+			for ( int i = 0; i < 49; i++ ) // 49 * 15 = 735 samples
+				d.add( 0x8F );
+		}
+		d.add( 0x66 );
+		
+		byte [] f = d.toArray();
+		putString( f, 0, "Vgm " );
+		putLE32( f, 0x04, f.length - 0x04 );
+		putLE32( f, 0x08, 0x150 );          // version
+		putLE32( f, 0x0C, 3579545 );        // PSG clock
+		putLE32( f, 0x18, 60 * 735 );       // total samples
+		putLE32( f, 0x1C, loop - 0x1C );    // loop offset
+		putLE32( f, 0x20, 60 * 735 );       // loop samples
+		putLE32( f, 0x24, 60 );             // rate
+		f [0x28] = 0x09;                    // PSG feedback
+		f [0x2A] = 16;                      // PSG shift width
+		putLE32( f, 0x2C, 7670453 );        // YM2612 clock
+		putLE32( f, 0x34, 0x40 - 0x34 );    // data offset
+		return f;
+	}
+	
+	// File of given type, as returned by MusicEmu.fileType()
+	static byte [] ofType( String type )
+	{
+		if ( "NSF".equals( type ) ) return nsf();
+		if ( "GBS".equals( type ) ) return gbs();
+		if ( "SPC".equals( type ) ) return spc();
+		if ( "VGM".equals( type ) ) return vgm();
+		return null;
+	}
+	
+	static final String [] types = { "NSF", "GBS", "SPC", "VGM" };
+
+// private
+	
+	static final class ByteList
+	{
+		byte [] data = new byte [0x1000];
+		int size;
+		
+		void add( int b )
+		{
+			if ( size >= data.length )
+				data = DataReader.resize( data, data.length * 2 );
+			data [size++] = (byte) b;
+		}
+		
+		void add( int b0, int b1 )         { add( b0 ); add( b1 ); }
+		void add( int b0, int b1, int b2 ) { add( b0 ); add( b1 ); add( b2 ); }
+		void addLE32( int n ) { add( n ); add( n >> 8 ); add( n >> 16 ); add( n >> 24 ); }
+		
+		int size() { return size; }
+		byte [] toArray() { return DataReader.resize( data, size ); }
+	}
+	
+	static void putString( byte [] f, int pos, String s )
+	{
+		for ( int i = 0; i < s.length(); i++ )
+			f [pos + i] = (byte) s.charAt( i );
+	}
+	
+	static void putBytes( byte [] f, int pos, int [] b )
+	{
+		for ( int i = 0; i < b.length; i++ )
+			f [pos + i] = (byte) b [i];
+	}
+	
+	static void putLE16( byte [] f, int pos, int n )
+	{
+		f [pos    ] = (byte) n;
+		f [pos + 1] = (byte) (n >> 8);
+	}
+	
+	static void putLE32( byte [] f, int pos, int n )
+	{
+		putLE16( f, pos, n );
+		putLE16( f, pos + 2, n >> 16 );
+	}
+}
@@ -0,0 +1,199 @@
+package com.eliotlash.gme_p5;
+
+// Renders many tracks in parallel, one emulator set per worker thread
+
+/* Jobs are queued with add(), then run() starts a fixed number of worker
+threads which pull jobs until none remain. Each worker owns an
+OfflineRenderer, so its emulators are reused from one job to the next and
+at most one file per worker is resident at a time. Unless given, the worker
+count is capped both by processor count and by available heap, so a large
+library can't run the heap out regardless of its size. Heap per worker is a
+fixed budget rather than measured, since a file's size isn't known until a
+worker loads it; the default covers any NSF, GBS or SPC and VGMs up to a few
+MB uncompressed, and setWorkerHeap() raises it for libraries with larger
+files. */
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class BatchRenderer
+{
+	// A track to render, and its results once run() has finished
+	public static final class Job
+	{
+		public final String path;
+		public final int    track;
+		public final int    time;    // seconds before fade
+		public final String outPath; // null to discard output
+		
+		Job( String path, int track, int time, String outPath )
+		{
+			this.path    = path;
+			this.track   = track;
+			this.time    = time;
+			this.outPath = outPath;
+		}
+		
+		// Results
+		long      samples;
+		double    seconds;
+		long      nanos;
+		Throwable error;
+		
+		// Number of samples rendered (stereo, so two per frame)
+		public long samples() { return samples; }
+		
+		// Seconds of audio rendered
+		public double seconds() { return seconds; }
+		
+		// Wall-clock seconds spent on job, including loading
+		public double elapsedSeconds() { return nanos / 1.0e9; }
+		
+		// Render speed as multiple of real time
+		public double speed() { return nanos > 0 ? seconds * 1.0e9 / nanos : 0.0; }
+		
+		// Exception thrown while rendering, or null if job succeeded
+		public Throwable error() { return error; }
+		
+		public String toString()
+		{
+			return path + " #" + track + ": " + (error != null ? error.toString() :
+					seconds + " sec in " + elapsedSeconds() + " sec (" + speed() + "x)");
+		}
+	}
+	
+	// Default heap to budget per worker for file data, emulator state and buffers
+	public static final long defaultWorkerHeap = 16 * 1024 * 1024;
+	
+	// Uses defaultThreads( workerHeap ) workers
+	public BatchRenderer( int sampleRate ) { this( sampleRate, 0 ); }
+	
+	// Uses given number of workers regardless of heap, or as many as heap
+	// allows if 0
+	public BatchRenderer( int sampleRate, int threads )
+	{
+		if ( threads < 0 )
+			threads = 1;
+		this.sampleRate = sampleRate;
+		this.threads    = threads;
+	}
+	
+	// Number of workers used when none is specified: one per processor,
+	// but no more than available heap allows at workerHeap bytes each
+	public static int defaultThreads( long workerHeap )
+	{
+		Runtime rt = Runtime.getRuntime();
+		long n = rt.maxMemory() / Math.max( 1, workerHeap );
+		if ( n > rt.availableProcessors() )
+			n = rt.availableProcessors();
+		return (n < 1 ? 1 : (int) n);
+	}
+	
+	public static int defaultThreads() { return defaultThreads( defaultWorkerHeap ); }
+	
+	// Sets heap to budget per worker, when worker count wasn't given. Should
+	// be at least the largest file's uncompressed size plus a few MB.
+	public void setWorkerHeap( long bytes ) { workerHeap = bytes; }
+	
+	// Number of worker threads run() will use
+	public int threads() { return (threads > 0 ? threads : defaultThreads( workerHeap )); }
+	
+	// Sets fade length used for all jobs, in seconds
+	public void setFadeLength( int sec ) { fadeLength = sec; }
+	
+	// Sets silence and VGM loop limits used for all jobs. See OfflineRenderer.
+	public void setSilenceEnd( int sec ) { silenceSec = sec; }
+	public void setLoops( int loops ) { this.loops = loops; }
+	
+	// Selects WAV (default) or raw PCM output for all jobs
+	public void setWav( boolean wav ) { this.wav = wav; }
+	
+	// Queues track to be rendered for 'time' seconds plus fade, into outPath
+	public Job add( String path, int track, int time, String outPath )
+	{
+		Job job = new Job( path, track, time, outPath );
+		jobs.add( job );
+		return job;
+	}
+	
+	// Queued jobs, in order added
+	public List<Job> jobs() { return Collections.unmodifiableList( jobs ); }
+	
+	// Runs all queued jobs and waits for them to finish. Failed jobs have
+	// error() set; other jobs continue.
+	public void run() throws InterruptedException
+	{
+		final AtomicInteger next = new AtomicInteger();
+		final long start = System.nanoTime();
+		
+		int count = Math.min( threads(), jobs.size() );
+		Thread [] workers = new Thread [count];
+		for ( int i = 0; i < count; i++ )
+		{
+			workers [i] = new Thread( "BatchRenderer-" + i ) {
+				public void run() { work( next ); }
+			};
+			workers [i].start();
+		}
+		for ( int i = 0; i < count; i++ )
+			workers [i].join();
+		
+		elapsedNanos = System.nanoTime() - start;
+	}
+	
+	// Wall-clock seconds taken by last run()
+	public double elapsedSeconds() { return elapsedNanos / 1.0e9; }
+	
+	// Total seconds of audio rendered by successful jobs
+	public double secondsRendered()
+	{
+		double total = 0;
+		for ( Job job : jobs )
+			total += job.seconds;
+		return total;
+	}
+	
+	// Overall throughput of last run() as multiple of real time, across all workers
+	public double speed()
+	{
+		return elapsedNanos > 0 ? secondsRendered() * 1.0e9 / elapsedNanos : 0.0;
+	}
+
+// private
+	
+	final int sampleRate;
+	final int threads; // 0 to use defaultThreads( workerHeap )
+	long workerHeap = defaultWorkerHeap;
+	int fadeLength = 6;
+	int silenceSec;
+	int loops;
+	boolean wav = true;
+	final ArrayList<Job> jobs = new ArrayList<Job>();
+	long elapsedNanos;
+	
+	void work( AtomicInteger next )
+	{
+		OfflineRenderer r = new OfflineRenderer( sampleRate );
+		r.setFadeLength( fadeLength );
+		r.setSilenceEnd( silenceSec );
+		r.setLoops( loops );
+		r.setWav( wav );
+		
+		for ( int i; (i = next.getAndIncrement()) < jobs.size(); )
+		{
+			Job job = jobs.get( i );
+			long start = System.nanoTime();
+			try
+			{
+				r.renderFile( job.path, job.track, job.time, job.outPath );
+				job.samples = r.samplesRendered();
+				job.seconds = r.secondsRendered();
+			}
+			catch ( Throwable e )
+			{
+				job.error = e;
+			}
+			job.nanos = System.nanoTime() - start;
+		}
+	}
+}
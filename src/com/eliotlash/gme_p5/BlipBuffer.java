@@ -20,11 +20,17 @@ final class BlipBuffer
 	
 	BlipBuffer() { setVolume( 1.0 ); }
 	
-	// Sets sample rate of output and changes buffer length to msec
+	// Sets sample rate of output and changes buffer length to msec.
+	// Actual length is rounded up to a power of two so buf can be used as a ring.
 	public void setSampleRate( int rate, int msec )
 	{
 		sampleRate = rate;
-		buf = new int [(int) ((long) msec * rate / 1000) + 1024];
+		int size = (int) ((long) msec * rate / 1000) + 1024;
+		while ( (size & (size - 1)) != 0 )
+			size += size & -size;
+		buf  = new int [size];
+		mask = size - 1;
+		readPos = 0;
 	}
 	
 	// Sets input clock rate. Must be set after sample rate.
@@ -40,8 +46,9 @@ final class BlipBuffer
 	// Removes all samples from buffer
 	public void clear()
 	{
-		offset = 0;
-		accum  = 0;
+		offset  = 0;
+		accum   = 0;
+		readPos = 0;
 		java.util.Arrays.fill( buf, 0, buf.length, 0 );
 	}
 	
@@ -81,18 +88,32 @@ final class BlipBuffer
 		}
 	}
 	
+	// Makes addDelta() do nothing while muted, for skipping ahead quickly
+	public void setMuted( boolean muted ) { this.muted = muted; }
+	
 	// Adds delta at given time
 	public void addDelta( int time, int delta )
 	{
+		if ( muted )
+			return;
+		
 		final int [] buf = this.buf;
 		final int phase = (time = time * factor + offset) >>
 				(timeBits - phaseBits) & (phaseCount - 1);
 		
+		// position in ring, relative to first unread sample
+		time = (time >> timeBits) + readPos & mask;
+		if ( time > mask + 1 - stepWidth )
+		{
+			addDeltaWrapped( time, phase, delta );
+			return;
+		}
+		
 		if ( muchFaster )
 		{
 			final int right = ((delta *= volume) >> phaseBits) * phase;
-			buf [time >>= timeBits] += delta - right;
-			buf [time + 1         ] += right;
+			buf [time    ] += delta - right;
+			buf [time + 1] += right;
 		}
 		else
 		{
@@ -100,7 +121,7 @@ final class BlipBuffer
 			
 			// left half
 			int [] k = kernel [phase];
-			buf [time >>= timeBits] += k [0] * delta;
+			buf [time    ] += k [0] * delta;
 			buf [time + 1] += k [1] * delta;
 			buf [time + 2] += k [2] * delta;
 			buf [time + 3] += k [3] * delta;
@@ -135,15 +156,15 @@ final class BlipBuffer
 	public void endFrame( int time )
 	{
 		offset += time * factor;
-		assert samplesAvail() < buf.length;
+		assert samplesAvail() + stepWidth <= buf.length;
 	}
 	
 	// Number of samples available to be read
 	public int samplesAvail() { return offset >> timeBits; }
 	
-	// Reads at most count samples into out at offset pos*2 (2 bytes per sample)
-	// and returns number of samples actually read.
-	public int readSamples( byte [] out, int pos, int count )
+	// Reads at most count samples into out at offset pos and returns number
+	// of samples actually read.
+	public int readSamples( short [] out, int pos, int count )
 	{
 		final int avail = samplesAvail();
 		if ( count > avail )
@@ -153,23 +174,22 @@ final class BlipBuffer
 		{
 			// Integrate
 			final int [] buf = this.buf;
+			final int mask = this.mask;
 			int accum = this.accum;
-			pos <<= 1;
-			int i = 0;
+			int i = readPos;
+			int n = count;
 			do
 			{
 				int s = (accum += buf [i] - (accum >> 9)) >> 15;
+				i = (i + 1) & mask;
 				
 				// clamp to 16 bits
 				if ( (short) s != s )
 					s = (s >> 24) ^ 0x7FFF;
 				
-				// write as little-endian
-				out [pos    ] = (byte) (s >> 8);
-				out [pos + 1] = (byte) s;
-				pos += 2;
+				out [pos++] = (short) s;
 			}
-			while ( ++i < count );
+			while ( --n > 0 );
 			this.accum = accum;
 			
 			removeSamples( count );
@@ -177,6 +197,31 @@ final class BlipBuffer
 		return count;
 	}
 
+	// Saves unread samples and partially added deltas
+	void saveState( StateWriter out )
+	{
+		out.putInt( offset );
+		out.putInt( accum );
+		
+		// deltas extend at most stepWidth past last available sample
+		int count = samplesAvail() + stepWidth;
+		for ( int i = 0; i < count; i++ )
+			out.putInt( buf [(readPos + i) & mask] );
+	}
+	
+	void loadState( StateReader in )
+	{
+		offset  = in.getInt();
+		accum   = in.getInt();
+		readPos = 0;
+		java.util.Arrays.fill( buf, 0, buf.length, 0 );
+		
+		int count = samplesAvail() + stepWidth;
+		if ( count < stepWidth || count > buf.length )
+			StateReader.invalid();
+		in.getInts( buf, 0, count );
+	}
+
 // internal
 
 	static final int timeBits = 16;
@@ -190,9 +235,12 @@ final class BlipBuffer
 	int [] [] kernel;
 	int accum;
 	int [] buf;
+	int mask;    // buf.length - 1
+	int readPos; // index of first unread sample in buf
 	int sampleRate;
 	int clockRate_;
 	int volume;
+	boolean muted;
 	
 	void removeSilence( int count )
 	{
@@ -200,14 +248,49 @@ final class BlipBuffer
 		assert samplesAvail() >= 0;
 	}
 	
+	// Clears samples that were read so ring space can be reused. Only touches
+	// count elements, rather than shifting the remaining samples down.
 	void removeSamples( int count )
 	{
-		int remain = samplesAvail() - count + stepWidth;
-		System.arraycopy( buf, count, buf, 0, remain );
-		java.util.Arrays.fill( buf, remain, remain + count, 0 );
+		int end = readPos + count;
+		if ( end <= buf.length )
+		{
+			java.util.Arrays.fill( buf, readPos, end, 0 );
+		}
+		else
+		{
+			java.util.Arrays.fill( buf, readPos, buf.length, 0 );
+			java.util.Arrays.fill( buf, 0, end - buf.length, 0 );
+		}
+		readPos = end & mask;
 		removeSilence( count );
 	}
 	
+	// Slow path of addDelta() for when kernel straddles end of ring
+	private void addDeltaWrapped( int time, int phase, int delta )
+	{
+		final int [] buf = this.buf;
+		final int mask = this.mask;
+		
+		if ( muchFaster )
+		{
+			final int right = ((delta *= volume) >> phaseBits) * phase;
+			buf [ time          ] += delta - right;
+			buf [(time + 1) & mask] += right;
+		}
+		else
+		{
+			int [] k = kernel [phase];
+			for ( int i = 0; i < halfWidth; i++ )
+				buf [(time + i) & mask] += k [i] * delta;
+			
+			k = kernel [phaseCount - phase];
+			time += halfWidth;
+			for ( int i = 0; i < halfWidth; i++ )
+				buf [(time + i) & mask] += k [halfWidth - 1 - i] * delta;
+		}
+	}
+	
 	// TODO: compute at run-time
 	static final int [] baseKernel =
 	{
@@ -289,6 +372,12 @@ final class StereoBuffer
 			bufs [i].setVolume( v );
 	}
 	
+	public void setMuted( boolean muted )
+	{
+		for ( int i = bufs.length; --i >= 0; )
+			bufs [i].setMuted( muted );
+	}
+	
 	// The three channels that are mixed together
 	// left output  = left  + center
 	// right output = right + center
@@ -298,14 +387,36 @@ final class StereoBuffer
 	
 	public void endFrame( int time )
 	{
+		final int avail = (Metrics.enabled ? samplesAvail() : 0);
 		for ( int i = bufs.length; --i >= 0; )
 			bufs [i].endFrame( time );
+		if ( Metrics.enabled )
+			Metrics.record( Metrics.blipSamples, samplesAvail() - avail );
 	}
 	
 	public int samplesAvail() { return bufs [2].samplesAvail() << 1; }
 	
+	// Discards count samples without reading them. Count must be a multiple of 2.
+	public void removeSamples( int count )
+	{
+		for ( int i = bufs.length; --i >= 0; )
+			bufs [i].removeSamples( count >> 1 );
+	}
+	
+	void saveState( StateWriter out )
+	{
+		for ( int i = 0; i < bufs.length; i++ )
+			bufs [i].saveState( out );
+	}
+	
+	void loadState( StateReader in )
+	{
+		for ( int i = 0; i < bufs.length; i++ )
+			bufs [i].loadState( in );
+	}
+	
 	// Output is in stereo, so count must always be a multiple of 2
-	public int readSamples( byte [] out, int start, int count )
+	public int readSamples( short [] out, int start, int count )
 	{
 		assert (count & 1) == 0;
 		
@@ -317,16 +428,23 @@ final class StereoBuffer
 		{
 			// TODO: optimize for mono case
 			
+			// all three rings are advanced together, so they share read position
+			final int mask = bufs [2].mask;
+			final int first = bufs [2].readPos;
+			assert bufs [0].readPos == first && bufs [1].readPos == first;
+			
 			// calculate center in place
 			final int [] mono = bufs [2].buf;
 			{
 				int accum = bufs [2].accum;
-				int i = 0;
+				int i = first;
+				int n = count;
 				do
 				{
 					mono [i] = (accum += mono [i] - (accum >> 9));
+					i = (i + 1) & mask;
 				}
-				while ( ++i < count );
+				while ( --n > 0 );
 				bufs [2].accum = accum;
 			}
 			
@@ -336,22 +454,22 @@ final class StereoBuffer
 				// add right and output
 				final int [] buf = bufs [ch].buf;
 				int accum = bufs [ch].accum;
-				int pos = (start + ch) << 1;
-				int i = 0;
+				int pos = start + ch;
+				int i = first;
+				int n = count;
 				do
 				{
 					int s = ((accum += buf [i] - (accum >> 9)) + mono [i]) >> 15;
+					i = (i + 1) & mask;
 					
 					// clamp to 16 bits
 					if ( (short) s != s )
 						s = (s >> 24) ^ 0x7FFF;
 					
-					// write as big endian
-					out [pos    ] = (byte) (s >> 8);
-					out [pos + 1] = (byte) s;
-					pos += 4;
+					out [pos] = (short) s;
+					pos += 2;
 				}
-				while ( ++i < count );
+				while ( --n > 0 );
 				bufs [ch].accum = accum;
 			}
 			
@@ -28,7 +28,7 @@ class ClassicEmu extends MusicEmu
 		buf.clear();
 	}
 	
-	protected int play_( byte [] out, int count )
+	protected int play_( short [] out, int count )
 	{
 		int pos = 0;
 		while ( true )
@@ -43,19 +43,62 @@ class ClassicEmu extends MusicEmu
 			
 			if ( trackEnded_ )
 			{
-				java.util.Arrays.fill( out, pos, pos + count, (byte) 0 );
+				java.util.Arrays.fill( out, pos, pos + count, (short) 0 );
 				break;
 			}
 			
-			int clocks = runMsec( bufLength );
-			buf.endFrame( clocks );
+			runFrame();
 		}
 		return pos;
 	}
 	
+	// Runs emulation for one frame and adds its samples to buf
+	private void runFrame()
+	{
+		int clocks = runMsec( bufLength );
+		buf.endFrame( clocks );
+		if ( Metrics.enabled )
+			Metrics.record( Metrics.cpuClocks, clocks - idleTime );
+		idleTime = 0;
+	}
+	
+	// Runs emulation with buffer muted, which skips most synthesis, then generates
+	// last few samples normally so that output has settled when play() resumes.
+	protected void skip_( int count )
+	{
+		final int settle = sampleRate() / 4 * 2;
+		if ( count > settle * 2 )
+		{
+			int remain = count - settle;
+			buf.setMuted( true );
+			while ( remain > 0 && !trackEnded_ )
+			{
+				int n = buf.samplesAvail();
+				if ( n == 0 )
+				{
+					runFrame();
+					continue;
+				}
+				if ( n > remain )
+					n = remain;
+				buf.removeSamples( n );
+				remain -= n;
+			}
+			
+			// samples already generated past skip point are lost when clearing
+			count = settle + remain - buf.samplesAvail();
+			buf.clear();
+			buf.setMuted( false );
+		}
+		super.skip_( count );
+	}
+	
+	protected void saveState_( StateWriter out ) { buf.saveState( out ); }
+	protected void loadState_( StateReader in )  { buf.loadState( in ); }
+	
 	protected final int countSamples( int time ) { return buf.countSamples( time ); }
 
-	protected void mixSamples( byte [] out, int offset, int count )
+	protected void mixSamples( short [] out, int offset, int count )
 	{
 		// derived class can override and mix its own samples here
 	}
@@ -67,6 +110,10 @@ class ClassicEmu extends MusicEmu
 	
 	protected void setClockRate( int rate ) { buf.setClockRate( rate ); }
 	
+	// Clocks of current frame that time skipped over while CPU was idle,
+	// rather than running instructions
+	protected int idleTime;
+	
 	// Subclass should run here for at most clockCount and return actual
 	// number of clocks emulated (can be less)
 	protected int runClocks( int clockCount ) { return 0; }
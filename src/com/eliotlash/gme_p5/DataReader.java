@@ -6,6 +6,9 @@ package com.eliotlash.gme_p5;
 import java.io.*;
 import java.util.zip.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 class DataReader
 {
@@ -25,6 +28,56 @@ class DataReader
 		return new GZIPInputStream( in );
 	}
 	
+	// Loads entire file from disk, decompressing it if name ends in .GZ or .VGZ.
+	// Result is exactly the size of the (uncompressed) file, and is normally
+	// allocated only once.
+	static byte [] loadFile( String path ) throws Exception
+	{
+		FileInputStream in = new FileInputStream( new File( path ) );
+		try
+		{
+			FileChannel ch = in.getChannel();
+			long size = ch.size();
+			if ( size > maxSize )
+				throw new IOException( "File too large" );
+			
+			String name = path.toUpperCase();
+			if ( name.endsWith( ".GZ" ) || name.endsWith( ".VGZ" ) )
+				return loadData( openGZIP( in ), gzipSize( ch ) );
+			
+			byte [] data = new byte [(int) size];
+			ByteBuffer buf = ByteBuffer.wrap( data );
+			while ( buf.hasRemaining() && ch.read( buf ) >= 0 ) { }
+			if ( buf.hasRemaining() )
+				data = resize( data, buf.position() ); // file shrank while reading
+			return data;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	static final int maxSize = Integer.MAX_VALUE - 8;
+	
+	// Uncompressed size recorded at end of gzip file, or 0 if it's not plausible.
+	// Only modulo 4 GB, so it's used as a hint only.
+	static int gzipSize( FileChannel ch ) throws IOException
+	{
+		long size = ch.size();
+		if ( size < 18 ) // minimum gzip file
+			return 0;
+		
+		ByteBuffer b = ByteBuffer.allocate( 4 ).order( ByteOrder.LITTLE_ENDIAN );
+		long pos = size - 4;
+		while ( b.hasRemaining() )
+			if ( ch.read( b, pos + b.position() ) < 0 )
+				return 0;
+		
+		long n = b.getInt( 0 ) & 0xFFFFFFFFL;
+		return (n <= size * 1032 && n <= maxSize ? (int) n : 0); // deflate's maximum ratio
+	}
+	
 	// "Resizes" array to new size and preserves elements from in
 	static byte [] resize( byte [] in, int size )
 	{
@@ -35,26 +88,48 @@ class DataReader
 		return out;
 	}
 	
-	// Loads entire stream into byte array, then closes stream
+	// Loads entire stream into byte array of exactly its size, then closes stream
 	static byte [] loadData( InputStream in ) throws Exception
 	{
-		byte [] data = new byte [256 * 1024];
+		// file streams know how much remains
+		return loadData( in, in.available() );
+	}
+	
+	// Same as loadData( in ), but starts with array of sizeHint bytes, so that
+	// a stream of exactly that size is loaded without any copying
+	static byte [] loadData( InputStream in, int sizeHint ) throws Exception
+	{
+		byte [] data = new byte [sizeHint > minBuf ? sizeHint : minBuf];
 		int size = 0;
-		int count;
-		while ( (count = in.read( data, size, data.length - size )) != -1 )
+		while ( true )
 		{
-			size += count;
 			if ( size >= data.length )
-				data = resize( data, data.length * 2 );
+			{
+				// only grow if there's actually more
+				int b = in.read();
+				if ( b < 0 )
+					break;
+				if ( data.length >= maxSize )
+					throw new IOException( "File too large" );
+				data = resize( data, (int) Math.min( data.length * 2L, maxSize ) );
+				data [size++] = (byte) b;
+			}
+			
+			int count = in.read( data, size, data.length - size );
+			if ( count < 0 )
+				break;
+			size += count;
 		}
 		in.close();
 		
-		if ( data.length - size > data.length / 4 )
+		if ( size != data.length )
 			data = resize( data, size );
 		
 		return data;
 	}
 	
+	static final int minBuf = 16 * 1024;
+	
 	// Loads stream into ByteArrayInputStream
 	static ByteArrayInputStream cacheStream( InputStream in ) throws Exception
 	{
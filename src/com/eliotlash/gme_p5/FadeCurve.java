@@ -0,0 +1,91 @@
+package com.eliotlash.gme_p5;
+
+// Gain curve of a fade, precomputed for its length
+
+/* A fade's gain changes once per block of frames. Rather than work out the
+gain of each block as it's played, the gain of every block is calculated
+when the fade is set, so playing a fade costs a table lookup per block and
+a multiply per sample, which MusicEmu does as it writes samples out. A Shape
+gives the gains of a fade-out; a fade-in plays the shape backwards.
+
+Usage:
+	emu.setFade( 120, 8, FadeCurve.linear );
+	emu.setFadeIn( 2000, FadeCurve.points( 0.0, 0.8, 1.0 ) ); // points of fade-in */
+
+public final class FadeCurve
+{
+	// Gain at each point of a fade-out
+	public static abstract class Shape
+	{
+		// Gain that is full volume
+		public static final int unit = MusicEmu.gainUnit;
+		
+		// Gain of block 'block' of a fade-out 'blocks' long, where unit is
+		// full volume. Called for block 0 through 'blocks', so the last gain
+		// is that at the very end of the fade.
+		public abstract int gain( int block, int blocks );
+	}
+	
+	// Halves in volume over each eighth of fade, ending at 1/256. The fade
+	// setFade() has always done.
+	public static final Shape log = new Shape() {
+		public int gain( int block, int blocks )
+		{
+			int step = blocks / MusicEmu.fadeShift;
+			return MusicEmu.int_log( block, (step > 0 ? step : 1), MusicEmu.gainUnit );
+		}
+	};
+	
+	// Falls in a straight line to silence
+	public static final Shape linear = new Shape() {
+		public int gain( int block, int blocks )
+		{
+			return (int) ((long) MusicEmu.gainUnit * (blocks - block) / blocks);
+		}
+	};
+	
+	// Fade-out through levels spaced evenly from beginning to end, where 1.0
+	// is full volume and 0.0 is silence, joined by straight lines. For a fade-in,
+	// the same levels are passed through in reverse, so its first level should
+	// be the one heard first in a fade-out: points( 1.0, 0.3, 0.0 ) fades out
+	// quickly then slowly, and in slowly then quickly.
+	public static Shape points( double... levels )
+	{
+		if ( levels.length < 2 )
+			throw new IllegalArgumentException( "Fade curve needs at least two points" );
+		
+		final double [] l = levels.clone();
+		return new Shape() {
+			public int gain( int block, int blocks )
+			{
+				double pos = (double) block * (l.length - 1) / blocks;
+				int i = Math.min( (int) pos, l.length - 2 );
+				double level = l [i] + (l [i + 1] - l [i]) * (pos - i);
+				return (int) (Math.max( 0.0, Math.min( level, 1.0 ) ) * MusicEmu.gainUnit + 0.5);
+			}
+		};
+	}
+	
+	// Calculates gains of shape over 'blocks' blocks of 1 << blockShift frames,
+	// reversed if fadeIn is true
+	public FadeCurve( Shape shape, int blocks, int blockShift, boolean fadeIn )
+	{
+		this.shape      = shape;
+		this.blockShift = blockShift;
+		this.fadeIn     = fadeIn;
+		
+		gains = new int [blocks + 1];
+		for ( int i = 0; i <= blocks; i++ )
+			gains [fadeIn ? blocks - i : i] = shape.gain( i, blocks );
+	}
+	
+	final Shape shape;
+	final int blockShift;
+	final boolean fadeIn;
+	
+	// Gain of each block. Fade is over once past the last.
+	final int [] gains;
+	
+	// True if fade has finished by block
+	boolean ended( int block ) { return block >= gains.length; }
+}
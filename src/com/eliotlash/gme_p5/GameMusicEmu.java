@@ -114,6 +114,94 @@ public class GameMusicEmu {
                 }
         }
 
+        /**
+         * Loads file at given path in the background while the current file keeps
+         * playing, then plays it without a gap once the current one ends. Replaces
+         * any file already queued.
+         * @param path 
+         * @param time Length of time to play queued music before fading out, or -1 not to fade
+         */
+        public void queueFile(String path, int time) {
+                player.queueFileFromPath(path, 0, time);
+        }
+
+        public void queueFile(String path) {
+                queueFile(path, -1);
+        }
+
+        /**
+         * Sets length of crossfade from the current file into a queued one.
+         * @param msec Length of crossfade in milliseconds, or 0 to start queued file right after current one ends
+         */
+        public void setCrossfade(int msec) {
+                player.setCrossfade(msec);
+        }
+
+        /**
+         * Keeps only a few milliseconds of audio ready ahead of output, so changes are
+         * heard sooner, at greater risk of dropouts.
+         * @param lowLatency 
+         */
+        public void setLowLatency(boolean lowLatency) {
+                player.setLowLatency(lowLatency);
+        }
+
+        /**
+         * Number of times output ran out of audio since this was created. Each is
+         * a likely audible dropout.
+         */
+        public int getUnderruns() {
+                return player.getUnderruns();
+        }
+
+        /**
+         * Sets shape of fade-outs of files played from now on, such as
+         * FadeCurve.linear. FadeCurve.log is the default.
+         * @param shape 
+         */
+        public void setFadeShape(FadeCurve.Shape shape) {
+                player.setFadeShape(shape);
+        }
+
+        /**
+         * Fades currently playing file in from silence. Call just after playFile()
+         * to fade in from its start.
+         * @param msec Length of fade in milliseconds
+         * @param shape Shape of fade, such as FadeCurve.linear
+         */
+        public void setFadeIn(int msec, FadeCurve.Shape shape) {
+                player.setFadeIn(msec, shape);
+        }
+
+        /**
+         * Loads file at given path without playing it, for adding to a StreamMixer.
+         * Returns null if it couldn't be loaded.
+         * @param path 
+         */
+        public MusicEmu openFile(String path) {
+                try {
+                        MusicEmu emu = player.openFromPath(path);
+                        emu.startTrack(0);
+                        return emu;
+                } catch (Exception e) {
+                        error(getException(e));
+                        return null;
+                }
+        }
+
+        /**
+         * Stops currently playing file, if any, and plays all files added to mixer
+         * at once, until stopFile() is called or another file is played.
+         * @param mixer 
+         */
+        public void playMixer(StreamMixer mixer) {
+                try {
+                        player.playMixer(mixer);
+                } catch (Exception e) {
+                        error(getException(e));
+                }
+        }
+
         /**
          * Used internally to report error messages. These error messages will appear
          * in the console area of the PDE if you are running a sketch from the PDE,
@@ -44,6 +44,29 @@ class GbOsc
 			regs [i] = 0;
 	}
 	
+	void saveState( StateWriter out )
+	{
+		out.putInt( output_select );
+		out.putInts( regs );
+		out.putInt( vol_unit );
+		out.putInt( delay );
+		out.putInt( last_amp );
+		out.putInt( length );
+		out.putInt( enabled );
+	}
+	
+	// Output must be set from output_select afterwards
+	void loadState( StateReader in )
+	{
+		output_select = in.getInt( 0, 3 );
+		in.getIntsInRange( regs, 0, 0xFF );
+		vol_unit = in.getInt( 0, 0x7FFF );
+		delay    = in.getInt( 0, 0x40000000 ); // as set by GbSquare.reset()
+		last_amp = in.getInt( -dac_bias, 15 );
+		length   = in.getInt( 0, 256 );
+		enabled  = in.getInt( 0, 1 ); // negated to make mask
+	}
+	
 	void clock_length()
 	{
 		if ( (regs [4] & length_enabled) != 0 && length != 0 )
@@ -96,6 +119,20 @@ class GbEnv extends GbOsc
 		super.reset();
 	}
 	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( env_delay );
+		out.putInt( volume );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		env_delay = in.getInt( 0, 9 );
+		volume    = in.getInt( 0, 15 );
+	}
+	
 	int reload_env_timer()
 	{
 		int raw = regs [2] & 7;
@@ -177,6 +214,18 @@ class GbSquare extends GbEnv
 		delay = 0x40000000; // TODO: less hacky (never clocked until first trigger)
 	}
 	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( phase );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		phase = in.getInt( 0, 7 );
+	}
+	
 	boolean write_register( int frame_phase, int reg, int old_data, int data )
 	{
 		boolean result = super.write_register( frame_phase, reg, old_data, data );
@@ -282,6 +331,24 @@ final class GbSweepSquare extends GbSquare
 		super.reset();
 	}
 	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( sweep_freq );
+		out.putInt( sweep_delay );
+		out.putInt( sweep_enabled );
+		out.putInt( sweep_neg );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		sweep_freq    = in.getInt( 0, 0x7FF );
+		sweep_delay   = in.getInt( 0, 8 );
+		sweep_enabled = in.getInt( 0, period_mask | shift_mask );
+		sweep_neg     = in.getInt( 0, 0x08 );
+	}
+	
 	void reload_sweep_timer()
 	{
 		sweep_delay = (regs [0] & period_mask) >> 4;
@@ -345,6 +412,19 @@ final class GbSweepSquare extends GbSquare
 final class GbNoise extends GbEnv
 {
 	int bits;
+	boolean jump = true; // false to clock silent noise one step at a time, for comparison
+	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( bits );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		bits = in.getInt( 0, 0x7FFF );
+	}
 	
 	boolean write_register( int frame_phase, int reg, int old_data, int data )
 	{
@@ -363,6 +443,42 @@ final class GbNoise extends GbEnv
 	
 	static final byte [] noise_periods = { 8, 16, 32, 48, 64, 80, 96, 112 };
 	
+	// States of 15-bit and 7-bit LFSRs in the order they occur, and index of
+	// each state in that order. Lets silent noise be clocked any number of
+	// times at once.
+	static final char [] states15 = new char [0x7FFF];
+	static final char [] index15  = new char [0x8000];
+	static final char [] states7  = new char [0x7F];
+	static final char [] index7   = new char [0x80];
+	
+	static
+	{
+		makeStates( 1 << 14, states15, index15 );
+		makeStates( 1 << 6,  states7,  index7  );
+	}
+	
+	private static void makeStates( int feedback, char [] states, char [] index )
+	{
+		int bits = 1;
+		for ( int i = 0; i < states.length; i++ )
+		{
+			states [i] = (char) bits;
+			index [bits] = (char) i;
+			int changed = bits + 1;
+			bits >>= 1;
+			if ( (changed & 2) != 0 )
+				bits |= feedback;
+		}
+	}
+	
+	// LFSR state after clocking bits count times. Zero never changes.
+	static int advance( int bits, int count, char [] states, char [] index )
+	{
+		if ( bits == 0 )
+			return 0;
+		return states [(index [bits] + count % states.length) % states.length];
+	}
+	
 	int period()
 	{
 		int shift = regs [3] >> 4;
@@ -423,15 +539,25 @@ final class GbNoise extends GbEnv
 					int count = (end_time - time + period - 1) / period;
 					time += count * period;
 					
-					// TODO: be sure this doesn't drag performance too much
+					// Clock first few times directly, which also shifts out
+					// any bits above 7-bit LFSR, then jump ahead the rest
+					int n = (count < 8 || !jump ? count : 8);
 					bits ^= (feedback << 1) & -(bits & 1);
 					feedback *= 3;
 					do
 					{
 						bits = (bits >> 1) ^ (feedback & -(bits & 2));
 					}
-					while ( --count > 0 );
+					while ( --n > 0 );
 					bits &= ~(feedback << 1);
+					
+					if ( count > 8 && jump )
+					{
+						if ( (regs [3] & 8) != 0 )
+							bits = advance( bits, count - 8, states7, index7 );
+						else
+							bits = advance( bits, count - 8, states15, index15 );
+					}
 				}
 				else
 				{
@@ -487,6 +613,24 @@ final class GbWave extends GbOsc
 		super.reset();
 	}
 	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( wave_pos );
+		out.putInt( sample_buf_high );
+		out.putInt( sample_buf );
+		out.putInts( wave );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		wave_pos        = in.getInt( 0, wave_size - 1 );
+		sample_buf_high = in.getInt( 0, 15 );
+		sample_buf      = in.getInt( 0, 15 );
+		in.getIntsInRange( wave, 0, 15 );
+	}
+	
 	boolean write_register( int frame_phase, int reg, int old_data, int data )
 	{
 		final int max_len = 256;
@@ -664,6 +808,31 @@ final public class GbApu
 			write( 0, i + wave_ram, initial_wave [i] );
 	}
 	
+	// Saves oscillators and internal state. Must be called between frames.
+	public void saveState( StateWriter out )
+	{
+		out.putInt( frame_time );
+		out.putInt( last_time );
+		out.putInt( frame_phase );
+		out.putInts( regs );
+		for ( int i = 0; i < osc_count; i++ )
+			oscs [i].saveState( out );
+	}
+	
+	// Restores state saved by saveState(). Outputs must already be set.
+	public void loadState( StateReader in )
+	{
+		frame_time  = in.getInt( 0, frame_period );
+		last_time   = in.getInt( 0, 0xFFFFFF );
+		frame_phase = in.getInt( 0, 7 );
+		in.getIntsInRange( regs, 0, 0xFF );
+		for ( int i = 0; i < osc_count; i++ )
+		{
+			oscs [i].loadState( in );
+			oscs [i].output = outputs [oscs [i].output_select];
+		}
+	}
+	
 	private void run_until( int end_time )
 	{
 		assert end_time >= last_time; // end_time must not be before previous time
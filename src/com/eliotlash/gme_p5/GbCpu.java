@@ -36,6 +36,9 @@ public class GbCpu extends ClassicEmu
 		
 		for ( int i = 0; i < pageCount + 1; i++ )
 			mapPage( i, unmapped );
+		
+		java.util.Arrays.fill( readDirect,  false );
+		java.util.Arrays.fill( writeDirect, false );
 	}
 	
 	static final int pageShift = 13;
@@ -55,6 +58,58 @@ public class GbCpu extends ClassicEmu
 	// Maps address to memory
 	public final int mapAddr( int addr ) { return pages [addr >> pageShift] + addr; }
 	
+	// Sets whether reads and writes of address range access mapped memory
+	// directly, or go through cpuRead() and cpuWrite(). reset() sets all
+	// memory to go through them. Tracked in blocks finer than pages, so that
+	// high RAM can be direct while I/O registers beside it aren't.
+	public final void setDirect( int addr, int size, boolean read, boolean write )
+	{
+		assert addr % directSize == 0;
+		assert size % directSize == 0;
+		int first = addr >> directShift;
+		for ( int i = size >> directShift; i-- > 0; )
+		{
+			readDirect  [first + i] = read;
+			writeDirect [first + i] = write;
+		}
+	}
+	
+	static final int directShift = 7;
+	static final int directSize  = 1 << directShift;
+	
+	protected void saveState_( StateWriter out )
+	{
+		super.saveState_( out );
+		out.putInt( a );
+		out.putInt( bc );
+		out.putInt( de );
+		out.putInt( hl );
+		out.putInt( sp );
+		out.putInt( pc );
+		out.putInt( cz );
+		out.putInt( ph );
+		out.putInt( time );
+		out.putInts( pages );
+	}
+	
+	protected void loadState_( StateReader in )
+	{
+		super.loadState_( in );
+		a    = in.getInt( 0, 0xFF );
+		bc   = in.getInt( 0, 0xFFFF );
+		de   = in.getInt( 0, 0xFFFF );
+		hl   = in.getInt( 0, 0xFFFF );
+		sp   = in.getInt( 0, 0xFFFF );
+		pc   = in.getInt( 0, 0xFFFF );
+		cz   = in.getInt();
+		ph   = in.getInt();
+		time = in.getInt();
+		
+		// each page must map to a whole page of mem
+		for ( int i = 0; i < pageCount + 1; i++ )
+			pages [i] = in.getInt( -i * pageSize, mem.length - pageSize - i * pageSize );
+	}
+	
 	// Emulation
 	
 	// Registers. NOT kept updated during runCpu()
@@ -70,7 +125,26 @@ public class GbCpu extends ClassicEmu
 	protected int  cpuRead ( int addr ) { return 0; }
 	protected void cpuWrite( int addr, int data ) { }
 	
+	// Reads and writes memory, calling the handlers above only for blocks that
+	// aren't direct, so the common case makes no virtual call
+	final int read( int addr )
+	{
+		if ( readDirect [addr >> directShift] )
+			return mem [pages [addr >> pageShift] + addr] & 0xFF;
+		return cpuRead( addr );
+	}
+	
+	final void write( int addr, int data )
+	{
+		if ( writeDirect [addr >> directShift] )
+			mem [pages [addr >> pageShift] + addr] = (byte) data;
+		else
+			cpuWrite( addr, data );
+	}
+	
 	int pages [] = new int [pageCount + 1];
+	final boolean readDirect  [] = new boolean [0x10000 >> directShift];
+	final boolean writeDirect [] = new boolean [0x10000 >> directShift];
 	int cz, ph;
 	byte [] mem;
 	
@@ -130,7 +204,7 @@ public class GbCpu extends ClassicEmu
 				case 3: data = de & 0xFF; break;
 				case 4: data = hl >>   8; break;
 				case 5: data = hl & 0xFF; break;
-				case 6: data = cpuRead( hl ); break;
+				case 6: data = read( hl ); break;
 				default: data = a; break;
 				}
 				
@@ -223,7 +297,7 @@ public class GbCpu extends ClassicEmu
 				case 3: de = (de & 0xFF00) | data;    continue;
 				case 4: hl = data << 8 | (hl & 0xFF); continue;
 				case 5: hl = (hl & 0xFF00) | data;    continue;
-				case 6: cpuWrite( hl, data );         continue;
+				case 6: write( hl, data );         continue;
 				default: a = data;                    continue;
 				}
 			}
@@ -441,7 +515,7 @@ public class GbCpu extends ClassicEmu
 			case 0xAE: // XOR  (HL)
 			case 0xB6: // OR   (HL)
 			case 0xBE: // CP   (HL)
-				data = cpuRead( hl );
+				data = read( hl );
 				break;
 	
 			case 0x3C: // INC  A
@@ -920,7 +994,7 @@ public class GbCpu extends ClassicEmu
 			case 0x7E: // LD   A,(HL)
 			case 0x2A: // LD   A,(HL+)
 			case 0x3A: // LD   A,(HL-)
-				a = cpuRead( data );
+				a = read( data );
 				continue;
 			
 			case 0xE0: // LDH  (n),A
@@ -931,12 +1005,12 @@ public class GbCpu extends ClassicEmu
 			case 0x12: // LD   (DE),A
 			case 0x22: // LD   (HL+),A
 			case 0x32: // LD   (HL-),A
-				cpuWrite( data, a );
+				write( data, a );
 				continue;
 	
 			case 0x08: // LD   (nn),SP
-				cpuWrite( data, sp & 0xFF );
-				cpuWrite( (data + 1) & 0xFFFF, sp >> 8 );
+				write( data, sp & 0xFF );
+				write( (data + 1) & 0xFFFF, sp >> 8 );
 				continue;
 			
 			case 0x34: // INC  (HL)
@@ -949,7 +1023,7 @@ public class GbCpu extends ClassicEmu
 			case 0x74: // LD   (HL),H
 			case 0x75: // LD   (HL),L
 			case 0x77: // LD   (HL),A
-				cpuWrite( hl, data );
+				write( hl, data );
 				continue;
 	
 			case 0x01: // LD   BC,nn
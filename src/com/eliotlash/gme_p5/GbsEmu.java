@@ -40,6 +40,7 @@ final class GbsEmu extends GbCpu
 	int endTime;
 	int playPeriod;
 	int nextPlay;
+	boolean haltWait = true; // false to run HALT repeatedly until play, for comparison
 
 	GbApu apu = new GbApu();
 	
@@ -96,6 +97,17 @@ final class GbsEmu extends GbCpu
 		cpuWrite( --sp, idleAddr&0xFF );
 	}
 	
+	// Calls addr from HALT at pc, returning to instruction after it
+	void cpuInterrupt( int addr )
+	{
+		int ret = (pc + 1) & 0xFFFF;
+		pc = addr;
+		sp = (sp - 1) & 0xFFFF;
+		cpuWrite( sp, ret >> 8 );
+		sp = (sp - 1) & 0xFFFF;
+		cpuWrite( sp, ret & 0xFF );
+	}
+	
 	public void startTrack( int track )
 	{
 		super.startTrack( track );
@@ -110,6 +122,12 @@ final class GbsEmu extends GbCpu
 		mapMemory( 0, bankSize, rom.mapAddr( 0 ) );
 		setBank( 1 );
 		
+		// I/O registers at $FF00-$FF7F need cpuRead() and cpuWrite(), and ROM
+		// writes select bank
+		setDirect( 0,       0xFF00,           true, false );
+		setDirect( ramAddr, 0xFF00 - ramAddr, true, true  );
+		setDirect( 0xFF80,  0x80,             true, true  );
+		
 		java.util.Arrays.fill( ram,      0, 0x4000,  (byte)    0 );
 		java.util.Arrays.fill( ram, 0x4000, 0x5F80,  (byte) 0xFF );
 		java.util.Arrays.fill( ram, 0x5F80, ramSize, (byte)    0 );
@@ -128,6 +146,23 @@ final class GbsEmu extends GbCpu
 		cpuCall( getLE16( header, initAddrOff ) );
 	}
 	
+	protected void saveState_( StateWriter out )
+	{
+		super.saveState_( out );
+		out.putBytes( ram, 0, ramSize );
+		out.putInt( nextPlay );
+		apu.saveState( out );
+	}
+	
+	protected void loadState_( StateReader in )
+	{
+		super.loadState_( in );
+		in.getBytes( ram, 0, ramSize );
+		nextPlay = in.getInt();
+		apu.loadState( in );
+		updateTimer();
+	}
+	
 	protected int runClocks( int clockCount )
 	{
 		endTime = clockCount;
@@ -139,7 +174,11 @@ final class GbsEmu extends GbCpu
 			if ( time >= 0 )
 				break;
 			
-			if ( pc != idleAddr )
+			// A HALT waits for the next play call, like returning to idle does,
+			// except that play is then called as an interrupt and returns to
+			// just after the HALT. Either way, time jumps straight there.
+			boolean halted = (pc != idleAddr);
+			if ( halted && ram [mapAddr( pc )] != (byte) 0x76 )
 			{
 				// TODO: PC overflow handling
 				pc = (pc + 1) & 0xFFFF;
@@ -149,16 +188,28 @@ final class GbsEmu extends GbCpu
 			
 			// Next play call
 			int next = nextPlay - endTime;
+			if ( halted && !haltWait )
+			{
+				// HALT runs 4 clocks at a time over and over, except that
+				// play ends it as soon as it's due
+				int until = Math.min( next, 0 );
+				while ( time < until )
+					time = Math.min( time + 4, until );
+			}
 			if ( time < next )
 			{
+				idleTime += Math.min( next, 0 ) - time; // CPU runs nothing until then
 				time = 0;
 				if ( next > 0 )
-					break;
+					break; // stays halted, since pc is still at HALT
 				time = next;
 			}
 			
 			nextPlay += playPeriod;
-			cpuCall( getLE16( header, playAddrOff ) );
+			if ( halted )
+				cpuInterrupt( getLE16( header, playAddrOff ) );
+			else
+				cpuCall( getLE16( header, playAddrOff ) );
 		}
 		
 		// End time frame
@@ -0,0 +1,230 @@
+package com.eliotlash.gme_p5;
+
+// Optional counters and histograms of what the library is doing, for monitoring
+
+/* Disabled by default. While disabled, each measuring point costs one read of
+a static field, and points are placed once per frame or call, never per sample.
+Once enabled, each measurement adds to its metric's count, total, maximum and
+histogram, and is passed to the listener if one is set. Metrics can be read
+with report(), count() and the like, from a Listener, or through JMX once
+register() has been called.
+
+Usage:
+	Metrics.setEnabled( true );
+	...
+	System.out.println( Metrics.report() ); */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class Metrics
+{
+	// Metrics, as passed to record() and Listener
+	public static final int cpuClocks   = 0; // CPU clocks run per frame (per play() for SPC), not counting idle time skipped
+	public static final int blipSamples = 1; // samples produced by StereoBuffer per frame
+	public static final int playNanos   = 2; // nanoseconds per MusicEmu.play()
+	public static final int underruns   = 3; // output found no samples waiting
+	public static final int lineBytes   = 4; // bytes per write to audio line
+	public static final int loadNanos   = 5; // nanoseconds for MusicEmu.loadFile() or VgmEmu.loadStream()
+	public static final int metricCount = 6;
+	
+	static final String [] names = {
+		"cpuClocks", "blipSamples", "playNanos", "underruns", "lineBytes", "loadNanos"
+	};
+	
+	// Receives each measurement as it's made, on the thread that made it.
+	// Must be quick, since it's called from emulation and output threads.
+	public interface Listener
+	{
+		void record( int metric, long value );
+	}
+	
+	// Starts or stops measuring. Metrics already gathered are kept.
+	public static void setEnabled( boolean e ) { enabled = e; }
+	
+	public static boolean isEnabled() { return enabled; }
+	
+	// Sets listener, or removes it if l is null
+	public static void setListener( Listener l ) { listener = l; }
+	
+	// Name of metric
+	public static String name( int metric ) { return names [metric]; }
+	
+	// Number of measurements of metric
+	public static long count( int metric ) { return stats [metric].count.get(); }
+	
+	// Sum of measurements of metric
+	public static long total( int metric ) { return stats [metric].total.get(); }
+	
+	// Largest measurement of metric
+	public static long max( int metric ) { return stats [metric].max.get(); }
+	
+	// Number of measurements of metric in each power-of-two bucket, where
+	// bucket n holds values from 2^(n-1) up to 2^n - 1, and bucket 0 holds 0
+	// and below
+	public static long [] histogram( int metric )
+	{
+		AtomicLongArray h = stats [metric].buckets;
+		long [] out = new long [h.length()];
+		for ( int i = 0; i < out.length; i++ )
+			out [i] = h.get( i );
+		return out;
+	}
+	
+	// Upper bound of the histogram bucket in which fraction f of measurements
+	// of metric fall, or max() if less, so percentile( m, 0.99 ) approximates
+	// the 99th percentile. Returns 0 if there are no measurements.
+	public static long percentile( int metric, double f )
+	{
+		long [] h = histogram( metric );
+		long n = 0;
+		for ( int i = 0; i < h.length; i++ )
+			n += h [i];
+		
+		long want = (long) Math.ceil( n * f );
+		long sum = 0;
+		for ( int i = 0; i < h.length && n > 0; i++ )
+		{
+			sum += h [i];
+			if ( sum >= want )
+				return (i == 0 ? 0 : Math.min( (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1), max( metric ) ));
+		}
+		return 0;
+	}
+	
+	// Clears all metrics
+	public static void reset()
+	{
+		for ( int i = 0; i < metricCount; i++ )
+			stats [i] = new Stat();
+	}
+	
+	// Table of all metrics, one per line
+	public static String report()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append( String.format( "%-12s %12s %16s %12s %12s %12s%n",
+				"metric", "count", "total", "mean", "p99", "max" ) );
+		for ( int i = 0; i < metricCount; i++ )
+		{
+			long n = count( i );
+			sb.append( String.format( "%-12s %12d %16d %12d %12d %12d%n", names [i], n, total( i ),
+					(n > 0 ? total( i ) / n : 0), percentile( i, 0.99 ), max( i ) ) );
+		}
+		return sb.toString();
+	}
+	
+	// Registers metrics with the platform MBean server as
+	// com.eliotlash.gme_p5:type=Metrics, and enables them
+	public static synchronized void register() throws Exception
+	{
+		javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+		javax.management.ObjectName name = new javax.management.ObjectName( "com.eliotlash.gme_p5:type=Metrics" );
+		if ( !server.isRegistered( name ) )
+			server.registerMBean( new Bean(), name );
+		enabled = true;
+	}
+	
+	// What JMX sees. Arrays are indexed by metric, in the order of getNames().
+	public interface MetricsMXBean
+	{
+		boolean isEnabled();
+		void setEnabled( boolean e );
+		String [] getNames();
+		long [] getCounts();
+		long [] getTotals();
+		long [] getMaxima();
+		long [] getP99s();
+		String getReport();
+		void reset();
+	}
+
+// private
+	
+	// volatile so that it's seen promptly by threads already running
+	static volatile boolean enabled;
+	static volatile Listener listener;
+	static final Stat [] stats = new Stat [metricCount];
+	
+	static
+	{
+		reset();
+	}
+	
+	static final class Stat
+	{
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong total = new AtomicLong();
+		final AtomicLong max   = new AtomicLong();
+		final AtomicLongArray buckets = new AtomicLongArray( 65 );
+	}
+	
+	private Metrics() { }
+	
+	// Adds measurement of metric. Callers check enabled first, so that they
+	// don't measure anything while disabled.
+	static void record( int metric, long value )
+	{
+		final Stat s = stats [metric];
+		s.count.incrementAndGet();
+		s.total.addAndGet( value );
+		for ( long m; value > (m = s.max.get()) && !s.max.compareAndSet( m, value ); ) { }
+		s.buckets.incrementAndGet( value > 0 ? 64 - Long.numberOfLeadingZeros( value ) : 0 );
+		
+		final Listener l = listener;
+		if ( l != null )
+			l.record( metric, value );
+	}
+	
+	// Time to pass to endTiming(), or 0 if disabled
+	static long startTiming() { return (enabled ? System.nanoTime() : 0); }
+	
+	// Records nanoseconds since startTiming() as metric, unless startTiming()
+	// was called while disabled
+	static void endTiming( int metric, long start )
+	{
+		if ( start != 0 )
+			record( metric, System.nanoTime() - start );
+	}
+	
+	static final class Bean implements MetricsMXBean
+	{
+		public boolean isEnabled() { return enabled; }
+		public void setEnabled( boolean e ) { enabled = e; }
+		public String [] getNames() { return names.clone(); }
+		public String getReport() { return report(); }
+		public void reset() { Metrics.reset(); }
+		
+		public long [] getCounts()
+		{
+			long [] out = new long [metricCount];
+			for ( int i = 0; i < metricCount; i++ )
+				out [i] = count( i );
+			return out;
+		}
+		
+		public long [] getTotals()
+		{
+			long [] out = new long [metricCount];
+			for ( int i = 0; i < metricCount; i++ )
+				out [i] = total( i );
+			return out;
+		}
+		
+		public long [] getMaxima()
+		{
+			long [] out = new long [metricCount];
+			for ( int i = 0; i < metricCount; i++ )
+				out [i] = max( i );
+			return out;
+		}
+		
+		public long [] getP99s()
+		{
+			long [] out = new long [metricCount];
+			for ( int i = 0; i < metricCount; i++ )
+				out [i] = percentile( i, 0.99 );
+			return out;
+		}
+	}
+}
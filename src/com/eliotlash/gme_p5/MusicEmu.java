@@ -14,7 +14,7 @@ details. You should have received a copy of the GNU Lesser General Public
 License along with this module; if not, write to the Free Software Foundation,
 Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA */
 
-class MusicEmu
+public class MusicEmu
 {
 	// enables performance-intensive assertions
 	protected static final boolean debug = false;
@@ -34,12 +34,54 @@ class MusicEmu
 	// Loads music file into emulator. Might keep reference to data.
 	public void loadFile( byte [] data )
 	{
+		final long start = Metrics.startTiming();
 		trackEnded_   = true;
 		currentTrack_ = 0;
 		currentTime_  = 0;
 		trackCount_   = loadFile_( data );
+		Metrics.endTiming( Metrics.loadNanos, start );
+		
+		java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		crc.update( data, 0, data.length );
+		fileCrc = (int) crc.getValue();
+	}
+	
+	// Emulator type for given (upper-case) filename: "VGM", "GBS", "NSF", "SPC",
+	// or null if file type isn't supported
+	static String fileType( String name )
+	{
+		if ( name.endsWith( ".GZ" ) )
+			name = name.substring( 0, name.length() - 3 );
+		
+		if ( name.endsWith( ".VGM" ) || name.endsWith( ".VGZ" ) )
+			return "VGM";
+		
+		if ( name.endsWith( ".GBS" ) )
+			return "GBS";
+		
+		if ( name.endsWith( ".NSF" ) )
+			return "NSF";
+		
+		if ( name.endsWith( ".SPC" ) )
+			return "SPC";
+		
+		return null;
 	}
 	
+	// Creates emulator for type returned by fileType(), or null if type is null
+	static MusicEmu createEmuOfType( String type )
+	{
+		if ( "VGM".equals( type ) ) return new VgmEmu();
+		if ( "GBS".equals( type ) ) return new GbsEmu();
+		if ( "NSF".equals( type ) ) return new NsfEmu();
+		if ( "SPC".equals( type ) ) return new SpcEmu();
+		return null;
+	}
+	
+	// Creates appropriate emulator for given (upper-case) filename,
+	// or null if file type isn't supported
+	static MusicEmu createEmu( String name ) { return createEmuOfType( fileType( name ) ); }
+	
 	// Number of tracks
 	public final int trackCount() { return trackCount_; }
 	
@@ -54,50 +96,268 @@ class MusicEmu
 		currentTime_  = 0;
 		fadeStart     = 0x40000000; // far into the future
 		fadeStep      = 1;
+		fadeShape     = FadeCurve.log;
+		fadeIn        = null;
+		silentRun     = 0;
+		silenceCount  = 0;
+		bufRemain     = 0;
+		emuEnded      = false;
 	}
 	
 	// Currently started track
 	public final int currentTrack() { return currentTrack_; }
 	
+	// Starts track, keeping fades set by setFade() and setFadeIn() if keepFades
+	// is true
+	private void startTrack( int track, boolean keepFades )
+	{
+		int fadeStart = this.fadeStart;
+		int fadeStep  = this.fadeStep;
+		FadeCurve.Shape fadeShape = this.fadeShape;
+		FadeCurve fadeIn = this.fadeIn;
+		startTrack( track );
+		if ( keepFades )
+		{
+			this.fadeStart = fadeStart;
+			this.fadeStep  = fadeStep;
+			this.fadeShape = fadeShape;
+			this.fadeIn    = fadeIn;
+		}
+	}
+	
 	// Generates at most count samples into out and returns
 	// number of samples written. If track has ended, fills
-	// buffer with silence.
+	// buffer with silence. Output is stereo, so count must
+	// be a multiple of 2.
+	public final int play( short [] out, int count )
+	{
+		final long start = Metrics.startTiming();
+		count = render( out, count );
+		if ( fadeFrame >= 0 )
+		{
+			for ( int i = 0; i < count; )
+			{
+				final int end = fadeSpan( i, count );
+				if ( spanGain != gainUnit )
+					scaleSamples( out, i, end - i, spanGain );
+				i = end;
+			}
+		}
+		Metrics.endTiming( Metrics.playNanos, start );
+		return count;
+	}
+	
+	// Same as play( short [] ... ), but writes each sample as two bytes, big-endian
 	public final int play( byte [] out, int count )
 	{
-		if ( !trackEnded_ )
+		final long start = Metrics.startTiming();
+		final short [] in = scratch( count );
+		count = render( in, count );
+		for ( int i = 0; i < count; )
 		{
-			count = play_( out, count );
-			if ( (currentTime_ += count >> 1) > fadeStart )
-				applyFade( out, count );
+			// fade is applied as samples are converted
+			final int end = fadeSpan( i, count );
+			final int gain = spanGain;
+			for ( ; i < end; i++ )
+			{
+				int s = (in [i] * gain) >> gainShift;
+				out [i * 2    ] = (byte) (s >> 8);
+				out [i * 2 + 1] = (byte) s;
+			}
 		}
-		else
+		Metrics.endTiming( Metrics.playNanos, start );
+		return count;
+	}
+	
+	// Same as play( short [] ... ), but writes samples as floats from -1.0 to 1.0
+	public final int play( float [] out, int count )
+	{
+		final long start = Metrics.startTiming();
+		final short [] in = scratch( count );
+		count = render( in, count );
+		for ( int i = 0; i < count; )
 		{
-			java.util.Arrays.fill( out, 0, count * 2, (byte) 0 );
+			final int end = fadeSpan( i, count );
+			final float scale = spanGain * (1.0f / 0x8000 / gainUnit);
+			for ( ; i < end; i++ )
+				out [i] = in [i] * scale;
 		}
+		Metrics.endTiming( Metrics.playNanos, start );
 		return count;
 	}
 	
+	// Skips count samples (stereo, so a multiple of 2) of current track
+	// without generating them. Faster than play() for most emulators.
+	public final void skip( int count )
+	{
+		if ( trackEnded_ || count <= 0 )
+			return;
+		
+		currentTime_ += count >> 1;
+		count = skipAhead( count );
+		if ( count > 0 )
+			skip_( count );
+		
+		if ( currentTime_ > fadeStart && fadeOut().ended( (currentTime_ - fadeStart) >> fadeBlockShift ) )
+			setTrackEnded();
+	}
+	
+	// Moves to msec into current track, restarting it if that's before
+	// current position. Fades set by setFade() and setFadeIn() are kept.
+	public final void seek( int msec )
+	{
+		// compare in msec so that seek( tell() ) doesn't restart track
+		if ( msec < tell() )
+			startTrack( currentTrack_, true );
+		int time = (int) ((long) msec * sampleRate_ / 1000);
+		if ( time > currentTime_ )
+			skip( (time - currentTime_) * 2 );
+	}
+	
+	// Saves complete state of current track in a compact binary form. Restoring
+	// it with loadState() continues playback exactly where it was saved.
+	public final byte [] saveState()
+	{
+		StateWriter out = new StateWriter();
+		out.putInt( stateVersion );
+		out.putInt( fileCrc );
+		out.putInt( sampleRate_ );
+		out.putInt( currentTrack_ );
+		
+		// emulator might have run ahead of output while checking for silence,
+		// in which case samples it has generated but not output are lost
+		out.putInt( currentTime_ + ((silenceCount + bufRemain) >> 1) );
+		out.putInt( fadeStart );
+		out.putInt( fadeStep );
+		out.putBool( trackEnded_ || emuEnded );
+		saveState_( out );
+		return out.toByteArray();
+	}
+	
+	// Restores state saved by saveState(). The same file must already be loaded
+	// and the same sample rate set.
+	public final void loadState( byte [] state ) { loadState( state, false ); }
+	
+	// Same as loadState( state ), but if keepFades is true, fades currently set
+	// by setFade() and setFadeIn() are kept rather than those saved with state
+	public final void loadState( byte [] state, boolean keepFades )
+	{
+		StateReader in = new StateReader( state );
+		if ( in.getInt() != stateVersion )
+			error( "Unsupported saved state version" );
+		if ( in.getInt() != fileCrc || in.getInt() != sampleRate_ )
+			error( "Saved state is for different file or sample rate" );
+		
+		// start track so that everything not in saved state is initialized
+		startTrack( in.getInt( 0, trackCount_ - 1 ), keepFades );
+		currentTime_ = in.getInt();
+		int fadeStart = in.getInt();
+		int fadeStep  = in.getInt( 1, maxFadeStep );
+		if ( !keepFades )
+		{
+			this.fadeStart = fadeStart;
+			this.fadeStep  = fadeStep;
+		}
+		trackEnded_  = in.getBool();
+		loadState_( in );
+		
+		if ( !in.atEnd() )
+			error( "Invalid saved state" );
+	}
+	
+	// Number of milliseconds current track has been played or skipped
+	public final int tell() { return (int) ((long) currentTime_ * 1000 / sampleRate_); }
+	
 	// Sets fade start and length, in seconds. Must be set after call to startTrack().
-	public final void setFade( int start, int length )
+	public final void setFade( int start, int length ) { setFade( start, length, FadeCurve.log ); }
+	
+	// Same as setFade( start, length ), with gain following shape rather than
+	// FadeCurve.log. Shape isn't saved by saveState().
+	public final void setFade( int start, int length, FadeCurve.Shape shape )
 	{
 		fadeStart = sampleRate_ * start;
 		fadeStep  = sampleRate_ * length / (fadeBlockSize * fadeShift);
-		if ( fadeStep < 1 )
-			fadeStep = 1;
+		fadeStep  = Math.max( 1, Math.min( fadeStep, maxFadeStep ) );
+		fadeShape = shape;
+	}
+	
+	// Fades in from silence over msec, beginning at current position, with gain
+	// following shape played backwards. Must be set after call to startTrack().
+	// Isn't saved by saveState().
+	public final void setFadeIn( int msec, FadeCurve.Shape shape )
+	{
+		fadeIn = null;
+		int frames = (int) ((long) sampleRate_ * msec / 1000);
+		if ( frames > 0 )
+		{
+			int blocks = (frames + (1 << fadeInBlockShift) - 1) >> fadeInBlockShift;
+			fadeInStart = currentTime_;
+			fadeIn = new FadeCurve( shape, blocks, fadeInBlockShift, true );
+		}
 	}
 	
 	// Number of seconds current track has been played
 	public final int currentTime() { return currentTime_ / sampleRate_; }
 	
-	// True if track has reached end or setFade()'s fade has finished
+	// Number of samples (stereo, so two per frame) until setFade()'s fade
+	// finishes, or a very large number if no fade is set
+	final int fadeRemaining()
+	{
+		long n = (fadeStart + (long) fadeBlockSize * fadeShift * fadeStep - currentTime_) * 2;
+		return (int) Math.max( 0, Math.min( n, Integer.MAX_VALUE ) );
+	}
+	
+	// True if track has reached end, setFade()'s fade has finished, or
+	// silence has lasted as long as setSilenceEnd() allows
 	public final boolean trackEnded() { return trackEnded_; }
 	
+	// Ends track once its output has stayed within 'threshold' of zero for 'sec'
+	// seconds, or never if sec is 0, the default. While output is silent, the
+	// emulator runs ahead of it to see whether silence continues, so the track
+	// usually ends having played only part of the silence. Kept across tracks
+	// and files.
+	public final void setSilenceEnd( int sec, int threshold )
+	{
+		silenceSec       = Math.max( 0, sec );
+		silenceThreshold = threshold;
+		if ( silenceSec > 0 && silenceBuf == null )
+			silenceBuf = new short [silenceBufSize];
+	}
+	
+	// Same as setSilenceEnd( sec, threshold ) with the usual threshold
+	public final void setSilenceEnd( int sec ) { setSilenceEnd( sec, defaultSilenceThreshold ); }
+	
+	// True if emulator has generated samples ahead of output, while checking
+	// for silence. A state saved now would lose them.
+	final boolean runningAhead() { return silenceCount + bufRemain > 0; }
+
 // protected
 	
 	// must be defined in derived class
 	protected int setSampleRate_( int rate )		{ return rate; }
 	protected int loadFile_( byte [] in )			{ return 0; }
-	protected int play_( byte [] out, int count )	{ return 0; }
+	protected int play_( short [] out, int count )	{ return 0; }
+	
+	// Derived class can override to skip faster. Default generates samples
+	// and discards them.
+	protected void skip_( int count )
+	{
+		final short [] buf = scratch( skipChunk );
+		while ( count > 0 && !trackEnded_ )
+		{
+			int n = play_( buf, (count < skipChunk ? count : skipChunk) );
+			if ( n <= 0 )
+				break;
+			count -= n;
+		}
+	}
+	
+	static final int skipChunk = 4096;
+	
+	// Derived class writes its state after that of its base class, and reads
+	// it back in the same order
+	protected void saveState_( StateWriter out ) { }
+	protected void loadState_( StateReader in ) { }
 	
 	// Reports error string as exception
 	protected void error( String str ) { throw new Error( str ); }
@@ -148,11 +408,33 @@ class MusicEmu
 	int currentTime_;
 	int fadeStart;
 	int fadeStep;
+	FadeCurve.Shape fadeShape = FadeCurve.log;
+	FadeCurve fadeOut;  // for fadeShape and fadeStep, made when first needed
+	FadeCurve fadeIn;   // null if not fading in
+	int fadeInStart;
 	boolean trackEnded_;
+	int fileCrc;
+	short [] scratch = new short [0];
 	
-	static final int fadeBlockSize = 512;
+	// Buffer of at least count samples for play() variants that convert output
+	final short [] scratch( int count )
+	{
+		if ( scratch.length < count )
+			scratch = new short [count];
+		return scratch;
+	}
+	
+	static final int stateVersion = 1;
+	
+	static final int fadeBlockShift = 9;
+	static final int fadeBlockSize = 1 << fadeBlockShift;
 	static final int fadeShift = 8; // fade ends with gain at 1.0 / (1 << fadeShift)
-
+	static final int maxFadeStep = 0x10000; // about 100 minutes at 44100 Hz, with 2 MB of curve
+	
+	// Fade-ins usually begin from silence, where steps are more audible,
+	// so their curves have smaller blocks
+	static final int fadeInBlockShift = 5;
+	
 	// unit / pow( 2.0, (double) x / step )
 	static int int_log( int x, int step, int unit )
 	{
@@ -164,34 +446,250 @@ class MusicEmu
 	static final int gainShift = 14;
 	static final int gainUnit  = 1 << gainShift;
 	
-	// Scales count big-endian 16-bit samples from io [pos*2] by gain/gainUnit
-	static void scaleSamples( byte [] io, int pos, int count, int gain )
+	// Scales count samples from io [pos] by gain/gainUnit
+	static void scaleSamples( short [] io, int pos, int count, int gain )
 	{
-		pos <<= 1;
-		count = (count << 1) + pos;
+		count += pos;
 		do
 		{
-			int s;
-			io [pos + 1] = (byte) (s = ((io [pos] << 8 | (io [pos + 1] & 0xFF)) * gain) >> gainShift);
-			io [pos    ] = (byte) (s >> 8);
+			io [pos] = (short) ((io [pos] * gain) >> gainShift);
+		}
+		while ( ++pos < count );
+	}
+	
+	// Frame at beginning of samples last generated by render(), or -1 if
+	// no fade applies to them
+	int fadeFrame = -1;
+	
+	// Gain found by last fadeSpan()
+	int spanGain;
+	
+	// Generates count samples into out without applying fade, and returns
+	// number generated. If track has ended, fills out with silence.
+	private int render( short [] out, int count )
+	{
+		fadeFrame = -1;
+		if ( trackEnded_ )
+		{
+			java.util.Arrays.fill( out, 0, count, (short) 0 );
+			return count;
 		}
-		while ( (pos += 2) < count );
+		
+		count = (silenceSec > 0 ? playChecked( out, count ) : play_( out, count ));
+		final int start = currentTime_;
+		currentTime_ += count >> 1;
+		if ( currentTime_ > fadeStart || fadeIn != null )
+			fadeFrame = start;
+		return count;
 	}
 	
-	private void applyFade( byte [] io, int count )
+	// Silence detection, done as in libgme: once output has been silent for a
+	// while, the emulator is run ahead of it a buffer at a time, up to
+	// silenceLookahead times faster, while it stays silent. Silence emulated
+	// ahead is output as zeros; the first buffer that isn't silent is held
+	// and output as is.
+	static final int silenceBufSize   = 2048;
+	static final int silenceLookahead = 3;
+	static final int defaultSilenceThreshold = 8;
+	int silenceSec;
+	int silenceThreshold = defaultSilenceThreshold;
+	short [] silenceBuf;
+	int silentRun;      // samples of silence at end of those emulated so far
+	int silenceCount;   // samples of silence emulated ahead of output
+	int bufRemain;      // samples emulated ahead of output after that silence, at end of silenceBuf
+	boolean emuEnded;   // emulator ended track while running ahead, so end comes when output catches up
+	
+	// Same as play_(), but checks output for silence and ends track once
+	// silence has lasted long enough
+	private int playChecked( short [] out, int count )
 	{
-		// Apply successively smaller gains based on time since fade start
-		for ( int i = 0; i < count; i += fadeBlockSize )
+		int pos = 0;
+		if ( silenceCount > 0 )
+		{
+			// run ahead, in proportion to how far output has got into silence
+			final long aheadTo = (long) silenceLookahead * (silentRun - silenceCount - bufRemain + count);
+			while ( silentRun < aheadTo && bufRemain == 0 && !emuEnded )
+				fillSilenceBuf();
+			
+			pos = Math.min( silenceCount, count );
+			silenceCount -= pos;
+			java.util.Arrays.fill( out, 0, pos, (short) 0 );
+			
+			if ( silentRun >= silenceSec * sampleRate_ * 2 )
+			{
+				// silent for long enough
+				silenceCount = 0;
+				bufRemain    = 0;
+				java.util.Arrays.fill( out, pos, count, (short) 0 );
+				setTrackEnded();
+				return count;
+			}
+		}
+		
+		if ( bufRemain > 0 )
 		{
-			// logarithmic progression
-			int gain = int_log( (currentTime_ + i - fadeStart) / fadeBlockSize, fadeStep, gainUnit );
-			if ( gain < (gainUnit >> fadeShift) )
+			int n = Math.min( bufRemain, count - pos );
+			System.arraycopy( silenceBuf, silenceBufSize - bufRemain, out, pos, n );
+			bufRemain -= n;
+			pos += n;
+		}
+		
+		if ( pos < count )
+		{
+			if ( emuEnded )
+			{
+				java.util.Arrays.fill( out, pos, count, (short) 0 );
 				setTrackEnded();
+				return count;
+			}
 			
-			int n = count - i;
-			if ( n > fadeBlockSize )
-				n = fadeBlockSize;
-			scaleSamples( io, i, n, gain );
+			int n = playAt( out, pos, count - pos );
+			int silent = countSilence( out, pos, n );
+			silentRun = (silent < n ? silent : silentRun + n);
+			pos += n;
+			
+			// begins running ahead on next call
+			if ( silentRun >= silenceBufSize && !trackEnded_ )
+				fillSilenceBuf();
+		}
+		return pos;
+	}
+	
+	// Generates count samples into out [pos] and returns number generated.
+	// Only called once nothing is held in silenceBuf.
+	private int playAt( short [] out, int pos, int count )
+	{
+		if ( pos == 0 )
+			return play_( out, count );
+		
+		int total = 0;
+		while ( total < count )
+		{
+			int n = play_( silenceBuf, Math.min( count - total, silenceBufSize ) );
+			if ( n <= 0 )
+				break;
+			System.arraycopy( silenceBuf, 0, out, pos + total, n );
+			total += n;
+		}
+		return total;
+	}
+	
+	// Emulates a buffer ahead of output
+	private void fillSilenceBuf()
+	{
+		int n = Math.max( 0, play_( silenceBuf, silenceBufSize ) );
+		java.util.Arrays.fill( silenceBuf, n, silenceBufSize, (short) 0 );
+		if ( trackEnded_ )
+		{
+			trackEnded_ = false;
+			emuEnded    = true;
+		}
+		
+		int silent = countSilence( silenceBuf, 0, silenceBufSize );
+		if ( silent < silenceBufSize )
+		{
+			silentRun = silent;
+			bufRemain = silenceBufSize;
+		}
+		else
+		{
+			silentRun    += silenceBufSize;
+			silenceCount += silenceBufSize;
+		}
+	}
+	
+	// Number of samples at end of count samples from io [pos] that are silent
+	private int countSilence( short [] io, int pos, int count )
+	{
+		final int threshold = silenceThreshold;
+		int i = pos + count;
+		while ( i > pos && io [i - 1] <= threshold && io [i - 1] >= -threshold )
+			i--;
+		return pos + count - i;
+	}
+	
+	// Discards up to count samples emulated ahead of output and returns number
+	// of samples still to skip
+	private int skipAhead( int count )
+	{
+		int n = Math.min( count, silenceCount );
+		silenceCount -= n;
+		count -= n;
+		
+		n = Math.min( count, bufRemain );
+		bufRemain -= n;
+		count -= n;
+		
+		if ( count > 0 )
+		{
+			silentRun = 0;
+			if ( emuEnded )
+			{
+				setTrackEnded();
+				count = 0;
+			}
 		}
+		return count;
+	}
+	
+	// Curve of setFade()'s fade, made again only when that changes
+	private FadeCurve fadeOut()
+	{
+		FadeCurve c = fadeOut;
+		int blocks = fadeStep * fadeShift;
+		if ( c == null || c.shape != fadeShape || c.gains.length != blocks + 1 )
+			fadeOut = c = new FadeCurve( fadeShape, blocks, fadeBlockShift, false );
+		return c;
+	}
+	
+	// Sets spanGain to fade gain of sample i of those just rendered, and
+	// returns index just past the following ones with the same gain
+	private int fadeSpan( int i, int count )
+	{
+		spanGain = gainUnit;
+		if ( fadeFrame < 0 )
+			return count;
+		
+		final int frame = fadeFrame + (i >> 1);
+		int gain = gainUnit;
+		int end = count;
+		
+		int t = frame - fadeStart;
+		if ( t >= 0 )
+		{
+			final FadeCurve c = fadeOut();
+			final int block = t >> fadeBlockShift;
+			if ( c.ended( block ) )
+			{
+				// rest is silent
+				setTrackEnded();
+				gain = 0;
+			}
+			else
+			{
+				gain = c.gains [block];
+				end = Math.min( end, i + ((((block + 1) << fadeBlockShift) - t) << 1) );
+			}
+		}
+		else if ( -t < (count - i) >> 1 )
+		{
+			end = i - (t << 1);
+		}
+		
+		final FadeCurve in = fadeIn;
+		if ( in != null )
+		{
+			// before fade-in begins, as after seeking back, is at its first gain
+			t = Math.max( 0, frame - fadeInStart );
+			final int block = t >> fadeInBlockShift;
+			if ( !in.ended( block ) )
+			{
+				gain = (gain * in.gains [block]) >> gainShift;
+				end = Math.min( end, i + ((((block + 1) << fadeInBlockShift) - t) << 1) );
+			}
+		}
+		
+		spanGain = gain;
+		return end;
 	}
 }
@@ -47,6 +47,24 @@ class NesOsc
 		lastAmp = amp;
 		return delta;
 	}
+	
+	void saveState( StateWriter out )
+	{
+		out.putInts( regs );
+		out.putBools( regWritten );
+		out.putInt( lengthCounter );
+		out.putInt( delay );
+		out.putInt( lastAmp );
+	}
+	
+	void loadState( StateReader in )
+	{
+		in.getIntsInRange( regs, 0, 0xFF );
+		in.getBools( regWritten );
+		lengthCounter = in.getInt( 0, 0xFF * 0x10 + 1 ); // DMC's is in bytes
+		delay         = in.getInt( 0, 0xFFFF );
+		lastAmp       = in.getInt( 0, 0xFF );
+	}
 }
 
 class NesEnvelope extends NesOsc
@@ -88,6 +106,20 @@ class NesEnvelope extends NesOsc
 		envDelay  = 0;
 		super.reset();
 	}
+	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( envVolume );
+		out.putInt( envDelay );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		envVolume = in.getInt( 0, 15 );
+		envDelay  = in.getInt( 0, 15 );
+	}
 }
 
 final class NesSquare extends NesEnvelope
@@ -104,6 +136,20 @@ final class NesSquare extends NesEnvelope
 		super.reset();
 	}
 	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( phase );
+		out.putInt( sweepDelay );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		phase      = in.getInt( 0, phaseRange - 1 );
+		sweepDelay = in.getInt( 0, 7 );
+	}
+	
 	void clockSweep( int negative_adjust )
 	{
 		int sweep = regs [1];
@@ -222,6 +268,20 @@ final class NesTriangle extends NesOsc
 		super.reset();
 	}
 	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( phase );
+		out.putInt( linearCounter );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		phase         = in.getInt( 0, phaseRange * 2 );
+		linearCounter = in.getInt( 0, 0x7F );
+	}
+	
 	void clockLinearCounter()
 	{
 		if ( regWritten [3] )
@@ -349,6 +409,18 @@ final class NesNoise extends NesEnvelope
 		lfsr = 1 << 14;
 		super.reset();
 	}
+	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( lfsr );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		lfsr = in.getInt( 0, 0x7FFF );
+	}
 }
 
 final class NesDmc extends NesOsc
@@ -389,6 +461,38 @@ final class NesDmc extends NesOsc
 		period = 0x1AC;
 	}
 	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( address );
+		out.putInt( period );
+		out.putInt( buf );
+		out.putInt( bits_remain );
+		out.putInt( bits );
+		out.putBool( buf_full );
+		out.putBool( silence );
+		out.putInt( dac );
+		out.putInt( irqEnabled );
+		out.putInt( irqFlag );
+		out.putInt( oscEnables );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		address     = in.getInt( 0, 0x7FFF );
+		period      = in.getInt( 50, 428 ); // range of dmc_period_table
+		buf         = in.getInt( 0, 0xFF );
+		bits_remain = in.getInt( 1, 8 );
+		bits        = in.getInt( 0, 0xFF );
+		buf_full    = in.getBool();
+		silence     = in.getBool();
+		dac         = in.getInt( 0, 0x7F );
+		irqEnabled  = in.getInt( 0, 1 );
+		irqFlag     = in.getInt( 0, 1 );
+		oscEnables  = in.getInt( 0, 0xFF );
+	}
+	
 	static final int [] dmc_period_table = {
 		428, 380, 340, 320, 286, 254, 226, 214, // NTSC
 		190, 160, 142, 128, 106,  84,  72,  54,
@@ -449,7 +553,7 @@ final class NesDmc extends NesOsc
 		if ( !buf_full && lengthCounter != 0 )
 		{
 			// Read byte via CPU
-			buf = cpu.cpuRead( 0x8000 + address );
+			buf = cpu.read( 0x8000 + address );
 			address = (address + 1) & 0x7FFF;
 			buf_full = true;
 			
@@ -562,6 +666,30 @@ public final class NesApu
 		dmc.lastAmp = dmc.dac = 0; // prevents click
 	}
 	
+	// Saves oscillators and internal state. Must be called between frames.
+	public void saveState( StateWriter out )
+	{
+		out.putInt( frameTime );
+		out.putInt( framePhase );
+		out.putInt( lastTime );
+		out.putInt( frameMode );
+		out.putInt( irqFlag );
+		for ( int i = 0; i < oscCount; i++ )
+			oscs [i].saveState( out );
+	}
+	
+	// Restores state saved by saveState(). Must be called after reset().
+	public void loadState( StateReader in )
+	{
+		frameTime  = in.getInt( 0, framePeriod * 2 );
+		framePhase = in.getInt( 0, 3 );
+		lastTime   = in.getInt( 0, 0xFFFFFF );
+		frameMode  = in.getInt( 0, 0xFF );
+		irqFlag    = in.getInt( 0, 1 );
+		for ( int i = 0; i < oscCount; i++ )
+			oscs [i].loadState( in );
+	}
+	
 	// Writes data to address at specified time
 	public static final int startAddr = 0x4000;
 	public static final int endAddr   = 0x4017;
@@ -32,7 +32,11 @@ public class NesCpu extends ClassicEmu
 		time = 0;
 		
 		for ( int i = 0; i < pageCount + 1; i++ )
+		{
 			mapPage( i, unmapped );
+			readDirect  [i] = false;
+			writeDirect [i] = false;
+		}
 	}
 	
 	static final int pageShift = 11;
@@ -52,6 +56,56 @@ public class NesCpu extends ClassicEmu
 	// Maps address to memory
 	public final int mapAddr( int addr ) { return pages [addr >> pageShift] + addr; }
 	
+	// Sets whether reads and writes of address range access mapped memory
+	// directly, or go through cpuRead() and cpuWrite(). reset() sets all
+	// pages to go through them, so only pages without I/O should be direct.
+	public final void setDirect( int addr, int size, boolean read, boolean write )
+	{
+		assert addr % pageSize == 0;
+		assert size % pageSize == 0;
+		int firstPage = addr / pageSize;
+		for ( int i = size / pageSize; i-- > 0; )
+		{
+			readDirect  [firstPage + i] = read;
+			writeDirect [firstPage + i] = write;
+		}
+	}
+	
+	protected void saveState_( StateWriter out )
+	{
+		super.saveState_( out );
+		out.putInt( a );
+		out.putInt( x );
+		out.putInt( y );
+		out.putInt( p );
+		out.putInt( s );
+		out.putInt( pc );
+		out.putInt( c );
+		out.putInt( nz );
+		out.putInt( time );
+		out.putInts( pages );
+	}
+	
+	protected void loadState_( StateReader in )
+	{
+		super.loadState_( in );
+		a    = in.getInt( 0, 0xFF );
+		x    = in.getInt( 0, 0xFF );
+		y    = in.getInt( 0, 0xFF );
+		p    = in.getInt( 0, 0xFF );
+		s    = in.getInt( 0, 0xFF );
+		pc   = in.getInt( 0, 0xFFFF );
+		c    = in.getInt();
+		nz   = in.getInt();
+		time = in.getInt();
+		if ( (p & ~(V40 | D08 | I04)) != 0 ) // other flags are kept in c and nz
+			StateReader.invalid();
+		
+		// each page must map to a whole page of mem
+		for ( int i = 0; i < pageCount + 1; i++ )
+			pages [i] = in.getInt( -i * pageSize, mem.length - pageSize - i * pageSize );
+	}
+	
 // Emulation
 	
 	// Registers. NOT kept updated during runCpu()
@@ -64,7 +118,29 @@ public class NesCpu extends ClassicEmu
 	protected int  cpuRead ( int addr ) { return 0; }
 	protected void cpuWrite( int addr, int data ) { }
 	
+	// Reads and writes memory, calling the handlers above only for pages that
+	// aren't direct. Being final, these keep the common case free of virtual
+	// calls, which the JIT can't inline once several emulators are in use.
+	final int read( int addr )
+	{
+		int page = addr >> pageShift;
+		if ( readDirect [page] )
+			return mem [pages [page] + addr] & 0xFF;
+		return cpuRead( addr );
+	}
+	
+	final void write( int addr, int data )
+	{
+		int page = addr >> pageShift;
+		if ( writeDirect [page] )
+			mem [pages [page] + addr] = (byte) data;
+		else
+			cpuWrite( addr, data );
+	}
+	
 	final int pages [] = new int [pageCount + 1];
+	final boolean readDirect  [] = new boolean [pageCount + 1];
+	final boolean writeDirect [] = new boolean [pageCount + 1];
 	int c, nz;
 	byte [] mem;
 	
@@ -181,7 +257,7 @@ public class NesCpu extends ClassicEmu
 				pc += 3;
 				int lsb;
 				time += (lsb = (mem [instr] & 0xFF) + x) >> 8;
-				a = nz = cpuRead( ((mem [instr + 1] & 0xFF) << 8) + lsb );
+				a = nz = read( ((mem [instr + 1] & 0xFF) << 8) + lsb );
 				continue;
 			}
 			
@@ -435,7 +511,7 @@ public class NesCpu extends ClassicEmu
 				if ( opcode != 0x91 )
 				{
 					time += lsb >> 8;
-					nz = cpuRead( addr );
+					nz = read( addr );
 				}
 				break;
 			}
@@ -452,7 +528,7 @@ public class NesCpu extends ClassicEmu
 				int z = mem [instr] + x;
 				addr = (mem [(z + 1) & 0xFF] & 0xFF) << 8 | (mem [z & 0xFF] & 0xFF);
 				if ( opcode != 0x81 )
-					nz = cpuRead( addr );
+					nz = read( addr );
 				break;
 			}
 			
@@ -484,7 +560,7 @@ public class NesCpu extends ClassicEmu
 			case 0xED: // SBC a
 			case 0xEE: // INC a
 				pc += 3;
-				nz = cpuRead( addr = (mem [instr + 1] & 0xFF) << 8 | (mem [instr] & 0xFF) );
+				nz = read( addr = (mem [instr + 1] & 0xFF) << 8 | (mem [instr] & 0xFF) );
 				break;
 	
 			case 0x1E: // ASL a,X
@@ -494,7 +570,7 @@ public class NesCpu extends ClassicEmu
 			case 0xDE: // DEC a,X
 			case 0xFE: // INC a,X
 				pc += 3;
-				nz = cpuRead( addr = ((mem [instr + 1] & 0xFF) << 8 | (mem [instr] & 0xFF)) + x );
+				nz = read( addr = ((mem [instr + 1] & 0xFF) << 8 | (mem [instr] & 0xFF)) + x );
 				// RMW instructions have no extra clock for page crossing
 				break;
 			
@@ -512,7 +588,7 @@ public class NesCpu extends ClassicEmu
 				if ( opcode != 0x9D )
 				{
 					time += lsb >> 8;
-					nz = cpuRead( addr );
+					nz = read( addr );
 				}
 				break;
 			}
@@ -532,7 +608,7 @@ public class NesCpu extends ClassicEmu
 				if ( opcode != 0x99 )
 				{
 					time += lsb >> 8;
-					nz = cpuRead( addr );
+					nz = read( addr );
 				}
 				break;
 			}
@@ -621,7 +697,7 @@ public class NesCpu extends ClassicEmu
 			case 0x99: // STA a,Y
 				if ( addr > 0x7FF )
 				{
-					cpuWrite( addr, a );
+					write( addr, a );
 					continue;
 				}
 			case 0x95: // STA z,X
@@ -631,7 +707,7 @@ public class NesCpu extends ClassicEmu
 			case 0x8E: // STX a
 				if ( addr > 0x7FF )
 				{
-					cpuWrite( addr, x );
+					write( addr, x );
 					continue;
 				}
 			case 0x86: // STX z
@@ -642,7 +718,7 @@ public class NesCpu extends ClassicEmu
 			case 0x8C: // STY a
 				if ( addr > 0x7FF )
 				{
-					cpuWrite( addr, y );
+					write( addr, y );
 					continue;
 				}
 			case 0x84: // STY z
@@ -752,7 +828,7 @@ public class NesCpu extends ClassicEmu
 				continue;
 				
 			case 0x6C: // JMP (a)
-				pc = cpuRead( addr + 1 - (((addr & 0xFF) + 1) & 0x100) ) << 8 | cpuRead( addr );
+				pc = read( addr + 1 - (((addr & 0xFF) + 1) & 0x100) ) << 8 | read( addr );
 				continue;
 			
 			case 0x4C: // JMP a
@@ -768,7 +844,7 @@ public class NesCpu extends ClassicEmu
 			
 			case 0x00:{// BRK #n
 				int t = pc + 2;
-				pc = cpuRead( 0xFFFF ) << 8 | cpuRead( 0xFFFE );
+				pc = read( 0xFFFF ) << 8 | read( 0xFFFE );
 				mem [(sp - 1) | 0x100] = (byte) (t >> 8);
 				mem [sp = (sp - 2) | 0x100] = (byte) t;
 				break;
@@ -914,7 +990,7 @@ public class NesCpu extends ClassicEmu
 					mem [addr] = (byte) nz;
 					continue;
 				}
-				cpuWrite( addr, nz );
+				write( addr, nz );
 				continue;
 			}
 		}
@@ -139,6 +139,14 @@ final class NsfEmu extends NesCpu
 		mapMemory( sramAddr, sramSize,   sramOffset );
 		// some NSF rips expect to read back 0 from 0x4016 and 0x4017 (Maniac Mansion)
 		mapMemory( 0x4000,   pageSize,   unmapped4000Offset );
+		
+		// Only APU page and wrapped-around addresses need cpuRead(), and only
+		// RAM and SRAM can be written directly
+		setDirect( 0,        0x4000,           true, false );
+		setDirect( 0x4800,   0x10000 - 0x4800, true, false );
+		setDirect( 0,        sramOffset,       true, true  );
+		setDirect( sramAddr, sramSize,         true, true  );
+		
 		for ( int i = 0; i < bankCount; ++i )
 			cpuWrite( bankSelectAddr + i, initialBanks [i] );
 		
@@ -154,6 +162,22 @@ final class NsfEmu extends NesCpu
 		cpuCall( getLE16( header, initAddrOff ) );
 	}
 	
+	protected void saveState_( StateWriter out )
+	{
+		super.saveState_( out );
+		out.putBytes( ram, 0, ramSize );
+		out.putInt( nextPlay );
+		apu.saveState( out );
+	}
+	
+	protected void loadState_( StateReader in )
+	{
+		super.loadState_( in );
+		in.getBytes( ram, 0, ramSize );
+		nextPlay = in.getInt();
+		apu.loadState( in );
+	}
+	
 	protected int runClocks( int clockCount )
 	{
 		endTime = clockCount;
@@ -175,6 +199,7 @@ final class NsfEmu extends NesCpu
 			int next = nextPlay - endTime;
 			if ( time < next )
 			{
+				idleTime += Math.min( next, 0 ) - time; // CPU runs nothing until then
 				time = 0;
 				if ( next > 0 )
 					break;
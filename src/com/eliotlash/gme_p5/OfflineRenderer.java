@@ -0,0 +1,202 @@
+package com.eliotlash.gme_p5;
+
+// Renders music emulator output to a WAV or raw PCM file as fast as possible
+
+/* Runs the emulator without any audio device, so it isn't paced to real
+time and doesn't need Processing. Output is 16-bit stereo. WAV files are
+little-endian as the format requires; raw files keep the big-endian sample
+order that MusicEmu.play() produces.
+
+Usage from the command line:
+	java com.eliotlash.gme_p5.OfflineRenderer in.nsf out.wav [track [seconds]] */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+public final class OfflineRenderer
+{
+	public OfflineRenderer( int sampleRate ) { this.sampleRate = sampleRate; }
+	
+	// Sets length of fade at end of track, in seconds
+	public void setFadeLength( int sec ) { fadeLength = sec; }
+	
+	// Ends tracks once they've been silent for 'sec' seconds, rather than
+	// rendering silence until the fade. 0 (default) disables.
+	public void setSilenceEnd( int sec ) { silenceSec = sec; }
+	
+	// Ends VGM tracks once their looped part has played 'loops' times, if
+	// that comes before the fade. 0 (default) disables.
+	public void setLoops( int loops ) { this.loops = loops; }
+	
+	// Selects WAV (default) or headerless PCM output
+	public void setWav( boolean wav ) { this.wav = wav; }
+	
+	// Enables playing VGM files from a small window as they're read, rather
+	// than loading them whole
+	public void setStreaming( boolean streaming ) { this.streaming = streaming; }
+	
+	// Renders track of music file at path into file at outPath, or discards
+	// output if outPath is null. Track plays for 'time' seconds, then fades
+	// out. Returns render speed as multiple of real time.
+	public double renderFile( String path, int track, int time, String outPath ) throws Exception
+	{
+		MusicEmu emu = loadEmu( path );
+		if ( outPath == null )
+			return render( emu, track, time, null );
+		
+		FileOutputStream out = new FileOutputStream( outPath );
+		try
+		{
+			return render( emu, track, time, out.getChannel() );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	// Number of samples written by last render (stereo, so two per frame)
+	public long samplesRendered() { return samplesRendered; }
+	
+	// Seconds of audio written by last render
+	public double secondsRendered() { return (double) samplesRendered / 2 / renderedRate; }
+	
+	// Wall-clock seconds taken by last render
+	public double elapsedSeconds() { return elapsedNanos / 1.0e9; }
+	
+	// Render speed of last render as multiple of real time
+	public double speed()
+	{
+		return elapsedNanos > 0 ? secondsRendered() * 1.0e9 / elapsedNanos : 0.0;
+	}
+	
+	public static void main( String [] args ) throws Exception
+	{
+		if ( args.length < 2 )
+		{
+			System.out.println( "Usage: OfflineRenderer in_file out_file [track [seconds]]" );
+			return;
+		}
+		int track = (args.length > 2 ? Integer.parseInt( args [2] ) : 0);
+		int time  = (args.length > 3 ? Integer.parseInt( args [3] ) : 150);
+		
+		OfflineRenderer r = new OfflineRenderer( 44100 );
+		r.setWav( !args [1].toUpperCase().endsWith( ".RAW" ) );
+		r.renderFile( args [0], track, time, args [1] );
+		System.out.println( "Rendered " + r.secondsRendered() + " sec in " +
+				r.elapsedSeconds() + " sec (" + r.speed() + "x real time)" );
+	}
+
+// private
+	
+	static final int bufSize    = 8192; // samples
+	static final int headerSize = 44;
+	
+	final int sampleRate;
+	int fadeLength = 6;
+	int silenceSec;
+	int loops;
+	boolean wav = true;
+	boolean streaming;
+	
+	final short [] buf = new short [bufSize];
+	final ByteBuffer io = ByteBuffer.allocateDirect( bufSize * 2 );
+	final java.util.HashMap<String, MusicEmu> emus = new java.util.HashMap<String, MusicEmu>();
+	long samplesRendered;
+	long elapsedNanos;
+	int renderedRate = 1;
+	
+	// Loads file into emulator, reusing one previously created for same file type
+	MusicEmu loadEmu( String path ) throws Exception
+	{
+		String type = MusicEmu.fileType( path.toUpperCase() );
+		if ( type == null )
+			throw new IOException( "Unsupported file type: " + path );
+		
+		MusicEmu emu = emus.get( type );
+		if ( emu == null )
+		{
+			emu = MusicEmu.createEmuOfType( type );
+			emu.setSampleRate( sampleRate );
+			emus.put( type, emu );
+		}
+		emu.setSilenceEnd( silenceSec );
+		if ( emu instanceof VgmEmu )
+			((VgmEmu) emu).setLoopLimit( loops );
+		if ( streaming && emu instanceof VgmEmu )
+			((VgmEmu) emu).loadStream( VgmStream.fileSource( path ) );
+		else
+			emu.loadFile( DataReader.loadFile( path ) );
+		return emu;
+	}
+	
+	// Starts track on already loaded emulator and writes it to out, beginning at
+	// out's current position. Stops early if track ends by itself. Output
+	// is discarded if out is null.
+	double render( MusicEmu emu, int track, int time, FileChannel out ) throws IOException
+	{
+		final long start = System.nanoTime();
+		final int rate = emu.sampleRate();
+		final boolean wav = this.wav && out != null;
+		final long headerPos = (out != null ? out.position() : 0);
+		if ( wav )
+			out.position( headerPos + headerSize );
+		
+		emu.startTrack( track );
+		emu.setFade( time, fadeLength );
+		
+		final long total = (long) rate * (time + fadeLength) * 2;
+		long written = 0;
+		while ( written < total && !emu.trackEnded() )
+		{
+			int count = bufSize;
+			if ( count > total - written )
+				count = (int) (total - written);
+			count = emu.play( buf, count );
+			if ( out != null )
+				writeSamples( out, count );
+			written += count;
+		}
+		
+		if ( wav )
+			writeWavHeader( out, headerPos, rate, written * 2 );
+		
+		samplesRendered = written;
+		renderedRate    = rate;
+		elapsedNanos    = System.nanoTime() - start;
+		return speed();
+	}
+	
+	private void writeSamples( FileChannel out, int count ) throws IOException
+	{
+		final ByteBuffer io = this.io;
+		io.clear();
+		io.order( wav ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+		io.asShortBuffer().put( buf, 0, count );
+		io.limit( count * 2 );
+		while ( io.hasRemaining() )
+			out.write( io );
+	}
+	
+	private static void writeWavHeader( FileChannel out, long pos, int rate, long dataSize ) throws IOException
+	{
+		ByteBuffer h = ByteBuffer.allocate( headerSize ).order( ByteOrder.LITTLE_ENDIAN );
+		h.put( (byte) 'R' ).put( (byte) 'I' ).put( (byte) 'F' ).put( (byte) 'F' );
+		h.putInt( (int) (dataSize + headerSize - 8) );
+		h.put( (byte) 'W' ).put( (byte) 'A' ).put( (byte) 'V' ).put( (byte) 'E' );
+		h.put( (byte) 'f' ).put( (byte) 'm' ).put( (byte) 't' ).put( (byte) ' ' );
+		h.putInt( 16 );             // chunk size
+		h.putShort( (short) 1 );    // PCM
+		h.putShort( (short) 2 );    // channels
+		h.putInt( rate );
+		h.putInt( rate * 4 );       // bytes per second
+		h.putShort( (short) 4 );    // bytes per frame
+		h.putShort( (short) 16 );   // bits per sample
+		h.put( (byte) 'd' ).put( (byte) 'a' ).put( (byte) 't' ).put( (byte) 'a' );
+		h.putInt( (int) dataSize );
+		h.flip();
+		while ( h.hasRemaining() )
+			pos += out.write( h, pos );
+	}
+}
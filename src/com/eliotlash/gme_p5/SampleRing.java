@@ -0,0 +1,90 @@
+package com.eliotlash.gme_p5;
+
+// Single-producer, single-consumer ring buffer of samples, without locks
+
+/* One thread may call write() while another calls read(), with no locking.
+Each side only ever advances its own position, and publishes it with an
+ordered store after touching the samples, so the other side never sees a
+position before the samples it covers. Positions count samples since
+creation and never wrap, so full and empty are never confused. */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+final class SampleRing
+{
+	// Creates ring holding at least 'size' samples
+	public SampleRing( int size )
+	{
+		int n = 1;
+		while ( n < size )
+			n <<= 1;
+		buf  = new short [n];
+		mask = n - 1;
+	}
+	
+	// Number of samples ring can hold
+	public int capacity() { return buf.length; }
+	
+	// Number of samples available to read
+	public int available() { return (int) (writePos.get() - readPos.get()); }
+	
+	// Amount of space available to write
+	public int free() { return buf.length - available(); }
+	
+	// Writes at most count samples from in [pos] and returns number written.
+	// Producer thread only.
+	public int write( short [] in, int pos, int count )
+	{
+		final long w = writePos.get();
+		final int free = buf.length - (int) (w - readPos.get());
+		if ( count > free )
+			count = free;
+		
+		final int start = (int) w & mask;
+		final int first = Math.min( count, buf.length - start );
+		System.arraycopy( in, pos, buf, start, first );
+		System.arraycopy( in, pos + first, buf, 0, count - first );
+		
+		writePos.lazySet( w + count );
+		return count;
+	}
+	
+	// Reads at most count samples into out [pos] and returns number read.
+	// Consumer thread only.
+	public int read( short [] out, int pos, int count )
+	{
+		final long r = readPos.get();
+		final int avail = (int) (writePos.get() - r);
+		if ( count > avail )
+			count = avail;
+		
+		final int start = (int) r & mask;
+		final int first = Math.min( count, buf.length - start );
+		System.arraycopy( buf, start, out, pos, first );
+		System.arraycopy( buf, 0, out, pos + first, count - first );
+		
+		readPos.lazySet( r + count );
+		return count;
+	}
+	
+	// Total number of samples written since ring was created
+	public long writeCount() { return writePos.get(); }
+	
+	// Discards samples written before writeCount() was 'pos', leaving any
+	// written since. Consumer thread only.
+	public void discardTo( long pos )
+	{
+		final long w = writePos.get();
+		if ( pos > w )
+			pos = w;
+		if ( pos > readPos.get() )
+			readPos.lazySet( pos );
+	}
+
+// private
+	
+	final short [] buf;
+	final int mask;
+	final AtomicLong writePos = new AtomicLong();
+	final AtomicLong readPos  = new AtomicLong();
+}
@@ -0,0 +1,317 @@
+package com.eliotlash.gme_p5;
+
+// Index of saved emulator states for fast seeking within tracks already played
+
+/* While a track plays, update() saves the emulator's state every 'interval'
+seconds. seek() then restores the latest saved state at or before the target
+and skips forward from there, so it emulates at most 'interval' seconds
+rather than the whole track up to that point. Checkpoints are kept for many
+tracks at once, up to a memory limit, beyond which the least recently used
+tracks are dropped. A track's checkpoints can be written to a stream and
+read back later, so they can be stored alongside the music file.
+
+Usage:
+	index.update( emu ); // after each emu.play()
+	...
+	index.seek( emu, msec ); // instead of emu.seek() */
+
+import java.io.*;
+import java.util.*;
+
+public final class SeekIndex
+{
+	// Saves a checkpoint every 'interval' seconds, keeping at most maxBytes
+	// of checkpoints in total
+	public SeekIndex( int interval, long maxBytes )
+	{
+		if ( interval < 1 )
+			interval = 1;
+		this.interval = interval * 1000;
+		this.maxBytes = maxBytes;
+	}
+	
+	// Records checkpoint if current position of emulator is at least an
+	// interval from the nearest existing ones. Call after each play().
+	public synchronized void update( MusicEmu emu )
+	{
+		// state saved while running ahead to check for silence would be later than tell()
+		if ( emu.trackEnded() || emu.runningAhead() )
+			return;
+		
+		final int time = emu.tell();
+		if ( time < nextTime && time >= lastTime && emu == lastEmu &&
+				emu.currentTrack() == lastKey.track && emu.fileCrc == lastKey.crc &&
+				emu.sampleRate() == lastKey.rate )
+		{
+			lastTime = time;
+			return;
+		}
+		
+		Track t = track( emu, true );
+		lastEmu  = emu;
+		lastKey  = t.key;
+		lastTime = time;
+		nextTime = Integer.MAX_VALUE;
+		
+		int i = t.find( time );
+		int prev = (i >= 0 ? t.times [i] : 0);
+		int next = (i + 1 < t.count ? t.times [i + 1] : Integer.MAX_VALUE);
+		if ( time - prev >= interval && next - time >= interval )
+		{
+			byte [] state = emu.saveState();
+			if ( !makeRoom( state.length + checkpointOverhead, t ) )
+				return;
+			t.insert( i + 1, time, state );
+			totalBytes += state.length + checkpointOverhead;
+			prev = time;
+		}
+		
+		// nothing more to do until an interval past previous checkpoint, or
+		// past the next one if that's too close
+		if ( next - prev >= interval * 2 )
+			nextTime = prev + interval;
+		else if ( next < Integer.MAX_VALUE - interval )
+			nextTime = next + interval;
+	}
+	
+	// Moves emulator to msec into current track, using nearest checkpoint
+	// when that's quicker than emu.seek()
+	public void seek( MusicEmu emu, int msec )
+	{
+		byte [] state = null;
+		synchronized ( this )
+		{
+			Track t = track( emu, false );
+			if ( t != null )
+			{
+				int i = t.find( msec );
+				int now = emu.tell();
+				if ( i >= 0 && (t.times [i] > now || msec < now) )
+					state = t.states [i];
+			}
+			nextTime = 0; // position will change
+		}
+		
+		if ( state != null )
+			emu.loadState( state, true ); // keep fades as currently set
+		emu.seek( msec );
+	}
+	
+	// Number of checkpoints for emulator's current track
+	public synchronized int checkpointCount( MusicEmu emu )
+	{
+		Track t = track( emu, false );
+		return (t != null ? t.count : 0);
+	}
+	
+	// Total bytes used by checkpoints of all tracks
+	public synchronized long totalBytes() { return totalBytes; }
+	
+	// Removes all checkpoints
+	public synchronized void clear()
+	{
+		tracks.clear();
+		totalBytes = 0;
+		nextTime   = 0;
+	}
+	
+	// Writes checkpoints of emulator's current track to out
+	public void write( MusicEmu emu, OutputStream out ) throws IOException
+	{
+		DataOutputStream data = new DataOutputStream( new BufferedOutputStream( out ) );
+		synchronized ( this )
+		{
+			Track t = track( emu, false );
+			data.writeInt( fileTag );
+			data.writeInt( MusicEmu.stateVersion );
+			data.writeInt( emu.fileCrc );
+			data.writeInt( emu.sampleRate() );
+			data.writeInt( emu.currentTrack() );
+			data.writeInt( (t != null ? t.count : 0) );
+			for ( int i = 0; t != null && i < t.count; i++ )
+			{
+				data.writeInt( t.times [i] );
+				data.writeInt( t.states [i].length );
+				data.write( t.states [i] );
+			}
+		}
+		data.flush();
+	}
+	
+	// Reads checkpoints written by write() and adds them to those of emulator's
+	// current track. Returns number added, which leaves out any already present
+	// or that didn't fit, or 0 if they were written for a different file, track
+	// or sample rate.
+	public int read( MusicEmu emu, InputStream in ) throws IOException
+	{
+		DataInputStream data = new DataInputStream( new BufferedInputStream( in ) );
+		if ( data.readInt() != fileTag )
+			throw new IOException( "Not a seek index" );
+		if ( data.readInt() != MusicEmu.stateVersion ||
+				data.readInt() != emu.fileCrc ||
+				data.readInt() != emu.sampleRate() ||
+				data.readInt() != emu.currentTrack() )
+			return 0;
+		
+		// a damaged count or size mustn't allocate more than the index could hold
+		int count = data.readInt();
+		if ( count < 0 || count > maxCheckpoints || count > maxBytes / checkpointOverhead )
+			throw new IOException( "Not a seek index" );
+		int [] times = new int [count];
+		byte [] [] states = new byte [count] [];
+		for ( int i = 0; i < count; i++ )
+		{
+			times [i] = data.readInt();
+			int size  = data.readInt();
+			if ( times [i] < 0 || size < 0 || size > maxStateSize || size > maxBytes )
+				throw new IOException( "Not a seek index" );
+			states [i] = new byte [size];
+			data.readFully( states [i] );
+		}
+		
+		int inserted = 0;
+		synchronized ( this )
+		{
+			Track t = track( emu, true );
+			for ( int i = 0; i < count; i++ )
+			{
+				int pos = t.find( times [i] );
+				if ( pos >= 0 && t.times [pos] == times [i] )
+					continue;
+				if ( !makeRoom( states [i].length + checkpointOverhead, t ) )
+					break;
+				t.insert( pos + 1, times [i], states [i] );
+				totalBytes += states [i].length + checkpointOverhead;
+				inserted++;
+			}
+			nextTime = 0;
+		}
+		return inserted;
+	}
+
+// private
+	
+	static final int fileTag = 0x474D4958; // 'GMIX'
+	static final int checkpointOverhead = 32; // approximate bytes used besides state itself
+	static final int maxCheckpoints = 0x10000; // over 18 hours at one per second
+	static final int maxStateSize = 16 * 1024 * 1024; // far more than any emulator saves
+	
+	// Checkpoints for one track, in order of time
+	static final class Track
+	{
+		final Key key;
+		int count;
+		int [] times = new int [8];
+		byte [] [] states = new byte [8] [];
+		
+		Track( Key key ) { this.key = key; }
+		
+		// Index of last checkpoint at or before time, or -1 if none
+		int find( int time )
+		{
+			int lo = 0;
+			int hi = count;
+			while ( lo < hi )
+			{
+				int mid = (lo + hi) >>> 1;
+				if ( times [mid] <= time )
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo - 1;
+		}
+		
+		void insert( int pos, int time, byte [] state )
+		{
+			if ( count >= times.length )
+			{
+				times  = Arrays.copyOf( times,  count * 2 );
+				states = Arrays.copyOf( states, count * 2 );
+			}
+			System.arraycopy( times,  pos, times,  pos + 1, count - pos );
+			System.arraycopy( states, pos, states, pos + 1, count - pos );
+			times  [pos] = time;
+			states [pos] = state;
+			count++;
+		}
+		
+		long bytes()
+		{
+			long total = 0;
+			for ( int i = 0; i < count; i++ )
+				total += states [i].length + checkpointOverhead;
+			return total;
+		}
+	}
+	
+	// Identifies a track of a particular file at a particular sample rate
+	static final class Key
+	{
+		final int crc;
+		final int track;
+		final int rate;
+		
+		Key( int crc, int track, int rate )
+		{
+			this.crc   = crc;
+			this.track = track;
+			this.rate  = rate;
+		}
+		
+		public int hashCode() { return crc ^ track * 31 ^ rate; }
+		
+		public boolean equals( Object o )
+		{
+			if ( !(o instanceof Key) )
+				return false;
+			Key k = (Key) o;
+			return crc == k.crc && track == k.track && rate == k.rate;
+		}
+	}
+	
+	final int interval; // msec
+	final long maxBytes;
+	long totalBytes;
+	
+	// iteration order is least recently used first
+	final LinkedHashMap<Key, Track> tracks = new LinkedHashMap<Key, Track>( 16, 0.75f, true );
+	
+	// update() does nothing until this emulator and track reach nextTime
+	MusicEmu lastEmu;
+	Key lastKey;
+	int lastTime;
+	int nextTime;
+	
+	static Key keyOf( MusicEmu emu ) { return new Key( emu.fileCrc, emu.currentTrack(), emu.sampleRate() ); }
+	
+	// Checkpoints of emulator's current track, marked as most recently used
+	Track track( MusicEmu emu, boolean create )
+	{
+		Key key = keyOf( emu );
+		Track t = tracks.get( key );
+		if ( t == null && create )
+		{
+			t = new Track( key );
+			tracks.put( key, t );
+		}
+		return t;
+	}
+	
+	// Evicts least recently used tracks other than 'keep' until there's room
+	// for count more bytes. Returns false if there still isn't room.
+	boolean makeRoom( int count, Track keep )
+	{
+		Iterator<Track> it = tracks.values().iterator();
+		while ( totalBytes + count > maxBytes && it.hasNext() )
+		{
+			Track t = it.next();
+			if ( t != keep )
+			{
+				totalBytes -= t.bytes();
+				it.remove();
+			}
+		}
+		return totalBytes + count <= maxBytes;
+	}
+}
@@ -33,6 +33,23 @@ class SmsOsc
 		outputSelect = 3;
 		output       = outputs [outputSelect];
 	}
+	
+	void saveState( StateWriter out )
+	{
+		out.putInt( outputSelect );
+		out.putInt( delay );
+		out.putInt( lastAmp );
+		out.putInt( volume );
+	}
+	
+	void loadState( StateReader in )
+	{
+		outputSelect = in.getInt( 0, 3 );
+		output       = outputs [outputSelect];
+		delay        = in.getInt( 0, 0xFFFF );
+		lastAmp      = in.getInt( -128, 128 );
+		volume       = in.getInt( 0, 64 );
+	}
 }
 
 final class SmsSquare extends SmsOsc
@@ -47,6 +64,20 @@ final class SmsSquare extends SmsOsc
 		super.reset();
 	}
 	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( period );
+		out.putInt( phase );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		period = in.getInt( 0, 0x3FFF );
+		phase  = in.getInt( 0, 1 ); // negated to make mask
+	}
+	
 	void run( int time, int endTime )
 	{
 		final int period = this.period;
@@ -110,6 +141,22 @@ final class SmsNoise extends SmsOsc
 		super.reset();
 	}
 	
+	void saveState( StateWriter out )
+	{
+		super.saveState( out );
+		out.putInt( shifter );
+		out.putInt( feedback );
+		out.putInt( select );
+	}
+	
+	void loadState( StateReader in )
+	{
+		super.loadState( in );
+		shifter  = in.getInt( 0, 0xFFFF );
+		feedback = in.getInt( 0, 0xFFFF );
+		select   = in.getInt( 0, 3 );
+	}
+	
 	void run( int time, int endTime, int period )
 	{
 		// TODO: probably also not zero-centered
@@ -239,6 +286,28 @@ final class SmsApu
 	
 	public void reset() { reset( 0x0009, 16 ); }
 	
+	// Saves oscillators and internal state. Must be called between frames.
+	public void saveState( StateWriter out )
+	{
+		out.putInt( lastTime );
+		out.putInt( latch );
+		out.putInt( noiseFeedback );
+		out.putInt( loopedFeedback );
+		for ( int i = 0; i < oscCount; i++ )
+			oscs [i].saveState( out );
+	}
+	
+	// Restores state saved by saveState(). Outputs must already be set.
+	public void loadState( StateReader in )
+	{
+		lastTime       = in.getInt( 0, 0xFFFFFF );
+		latch          = in.getInt( 0, 0xFF );
+		noiseFeedback  = in.getInt( 0, 0xFFFF );
+		loopedFeedback = in.getInt( 0, 0xFFFF );
+		for ( int i = 0; i < oscCount; i++ )
+			oscs [i].loadState( in );
+	}
+	
 	public void writeGG( int time, int data )
 	{
 		runUntil( time );
@@ -26,6 +26,28 @@ public class SpcCpu extends MusicEmu
 	protected int  cpuRead ( int addr ) { return 0; }
 	protected void cpuWrite( int addr, int data ) { }
 	
+	// Time at which reading timer counter at addr ($FD-$FF) will next give
+	// non-zero, called just after it read as zero, or Integer.MAX_VALUE if
+	// never. Lets runCpu() skip loops that poll the counter. By default,
+	// nothing is skipped.
+	protected int timerTickTime( int addr ) { return Integer.MIN_VALUE; }
+	
+	// Sets whether reads and writes of address range access memory directly,
+	// or go through cpuRead() and cpuWrite(). reset() sets all memory to go
+	// through them. Tracked in small blocks, since the I/O registers share
+	// page 0 with the most-used RAM.
+	public final void setDirect( int addr, int size, boolean read, boolean write )
+	{
+		assert addr % directSize == 0;
+		assert size % directSize == 0;
+		int first = addr >> directShift;
+		for ( int i = size >> directShift; i-- > 0; )
+		{
+			readDirect  [first + i] = read;
+			writeDirect [first + i] = write;
+		}
+	}
+	
 	// Resets registers and uses supplied physical memory
 	public final void reset( byte [] mem )
 	{
@@ -38,12 +60,98 @@ public class SpcCpu extends MusicEmu
 		psw = 0x04;
 		
 		time = 0;
+		
+		java.util.Arrays.fill( readDirect,  false );
+		java.util.Arrays.fill( writeDirect, false );
 	}
 	
 	public final void setPsw( int psw ) { this.psw = psw; }
 	
+	protected void saveState_( StateWriter out )
+	{
+		super.saveState_( out );
+		out.putInt( a );
+		out.putInt( x );
+		out.putInt( y );
+		out.putInt( psw );
+		out.putInt( sp );
+		out.putInt( pc );
+		out.putInt( time );
+	}
+	
+	protected void loadState_( StateReader in )
+	{
+		super.loadState_( in );
+		a    = in.getInt( 0, 0xFF );
+		x    = in.getInt( 0, 0xFF );
+		y    = in.getInt( 0, 0xFF );
+		psw  = in.getInt( 0, 0xFF );
+		sp   = in.getInt( 0, 0xFF );
+		pc   = in.getInt( 0, 0xFFFF );
+		time = in.getInt( 0, 0xFFFF ); // saved between frames, after CPU has caught up
+	}
+	
 	private byte [] mem;
 	
+	static final int directShift = 4;
+	static final int directSize  = 1 << directShift;
+	
+	// Indexed addresses can reach past $FFFF, to at most $100FE
+	private final boolean [] readDirect  = new boolean [(0x10000 + 0x100) >> directShift];
+	private final boolean [] writeDirect = new boolean [(0x10000 + 0x100) >> directShift];
+	
+	// Reads and writes memory, calling the handlers above only for blocks that
+	// aren't direct, so the common case makes no virtual call
+	private int read( int addr )
+	{
+		if ( readDirect [addr >> directShift] )
+			return mem [addr] & 0xFF;
+		return cpuRead( addr );
+	}
+	
+	private void write( int addr, int data )
+	{
+		if ( writeDirect [addr >> directShift] )
+			mem [addr] = (byte) data;
+		else
+			cpuWrite( addr, data );
+	}
+	
+	// Skips a loop that waits for a timer, as most SPC music does between ticks:
+	//	MOV A, $FD      (or MOV X or MOV Y, timer 0, 1 or 2)
+	//	BEQ -4
+	// If pc is at such a loop, just after it branched back because the counter read
+	// as zero, returns time after as many more iterations as would also read zero,
+	// stopping before the run would end. Otherwise returns time. Since reading a
+	// zero counter changes nothing, skipped iterations leave the same state as
+	// running them would.
+	
+	int skippedTime; // total clocks skipped over by skipTimerPoll(), for Metrics
+	boolean skipPolls = true; // false to run every iteration, for comparison
+	
+	private int skipTimerPoll( int pc, int time )
+	{
+		int opcode = mem [pc] & 0xFF;
+		int addr   = mem [pc + 1] & 0xFF;
+		if ( (opcode != 0xE4 && opcode != 0xEB && opcode != 0xF8) || addr < 0xFD ||
+				mem [pc + 2] != (byte) 0xF0 )
+			return time;
+		
+		// Zero is read up until the tick, and the loop must stop before the end
+		int limit = timerTickTime( addr );
+		if ( limit > 0 )
+			limit = 0;
+		
+		int read = time + instrTimes [opcode]; // time of next read
+		if ( read >= limit )
+			return time;
+		
+		int period = instrTimes [opcode] + instrTimes [0xF0] + 2;
+		int skipped = ((limit - 1 - read) / period + 1) * period;
+		skippedTime += skipped;
+		return time + skipped;
+	}
+	
 	static final int [] instrTimes =
 	{// 0 1 2 3 4 5 6 7 8 9 A B C D E F
 	    2,8,4,5,3,4,3,6,2,6,5,4,5,4,6,8, // 0
@@ -121,22 +229,22 @@ public class SpcCpu extends MusicEmu
 		//////// Often used
 	
 			case 0xE4: // MOV   A, d
-				a = nz = cpuRead( mem [pc + 1] & 0xFF | dp );
+				a = nz = read( mem [pc + 1] & 0xFF | dp );
 				pc += 2;
 				continue;
 			
 			case 0xF5: // MOV   A, !a+X
-				a = nz = cpuRead( ((mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF)) + x );
+				a = nz = read( ((mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF)) + x );
 				pc += 3;
 				continue;
 			
 			case 0xF4: // MOV   A, d+X
-				a = nz = cpuRead( (mem [pc + 1] + x) & 0xFF | dp );
+				a = nz = read( (mem [pc + 1] + x) & 0xFF | dp );
 				pc += 2;
 				continue;
 
 			case 0xEB: // MOV   Y, d
-				y = nz = cpuRead( mem [pc + 1] & 0xFF | dp );
+				y = nz = read( mem [pc + 1] & 0xFF | dp );
 				pc += 2;
 				continue;
 			
@@ -168,6 +276,8 @@ public class SpcCpu extends MusicEmu
 				{
 					pc += mem [pc - 1];
 					time += 2;
+					if ( mem [pc + 3] == -4 && dp == 0 && skipPolls ) // branched to instruction just before
+						time = skipTimerPoll( pc, time );
 				}
 				continue;
 			
@@ -422,62 +532,62 @@ public class SpcCpu extends MusicEmu
 			
 			case 0xBF: // MOV   A, (X)+
 				pc++;
-				a = nz = cpuRead( x + dp );
+				a = nz = read( x + dp );
 				x = (x + 1) & 0xFF;
 				continue;
 			
 			case 0xD9: // MOV   d+Y, X
-				cpuWrite( (mem [pc + 1] + y) & 0xFF | dp, x );
+				write( (mem [pc + 1] + y) & 0xFF | dp, x );
 				pc += 2;
 				continue;
 			
 			case 0xD6: // MOV   !a+Y, A
-				cpuWrite( ((mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF)) + y, a );
+				write( ((mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF)) + y, a );
 				pc += 3;
 				continue;
 			
 			case 0xD5: // MOV   !a+X, A
-				cpuWrite( ((mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF)) + x, a );
+				write( ((mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF)) + x, a );
 				pc += 3;
 				continue;
 			
 			case 0xF9: // MOV   X, d+Y
-				x = nz = cpuRead( (mem [pc + 1] + y) & 0xFF | dp );
+				x = nz = read( (mem [pc + 1] + y) & 0xFF | dp );
 				pc += 2;
 				continue;
 				
 			case 0xD7:{// MOV   [d]+Y, A
 				int t = mem [pc + 1];
-				cpuWrite( ((mem [(t + 1) & 0xFF | dp] & 0xFF) << 8 | (mem [t & 0xFF | dp] & 0xFF)) + y, a );
+				write( ((mem [(t + 1) & 0xFF | dp] & 0xFF) << 8 | (mem [t & 0xFF | dp] & 0xFF)) + y, a );
 				pc += 2;
 				continue;
 			}
 			
 			case 0xC7:{// MOV   [d+X], A
 				int t = mem [pc + 1] + x;
-				cpuWrite( (mem [(t + 1) & 0xFF | dp] & 0xFF) << 8 | (mem [t & 0xFF | dp] & 0xFF), a );
+				write( (mem [(t + 1) & 0xFF | dp] & 0xFF) << 8 | (mem [t & 0xFF | dp] & 0xFF), a );
 				pc += 2;
 				continue;
 			}
 			
 			case 0xC6: // MOV   (X), A
 				pc++;
-				cpuWrite( x + dp, a );
+				write( x + dp, a );
 				continue;
 			
 			case 0xAF: // MOV   (X)+, A
 				pc++;
-				cpuWrite( x + dp, a );
+				write( x + dp, a );
 				x = (x + 1) & 0xFF;
 				continue;
 	
 			case 0x8F: // MOV   d, #i
-				cpuWrite( mem [pc + 2] & 0xFF | dp, mem [pc + 1] );
+				write( mem [pc + 2] & 0xFF | dp, mem [pc + 1] );
 				pc += 3;
 				continue;
 	
 			case 0xFA: // MOV   dd, ds
-				cpuWrite( mem [pc + 2] & 0xFF | dp, cpuRead( mem [pc + 1] & 0xFF | dp ) );
+				write( mem [pc + 2] & 0xFF | dp, read( mem [pc + 1] & 0xFF | dp ) );
 				pc += 3;
 				continue;
 				
@@ -485,14 +595,14 @@ public class SpcCpu extends MusicEmu
 				data = mem [pc + 2];
 				addr = (data & 0x1F) << 8 | (mem [pc + 1] & 0xFF);
 				data = data >> 5 & 7;
-				cpuWrite( addr, cpuRead( addr ) & ~(1 << data) | ((c & 0x100) >> (8 - data)) );
+				write( addr, read( addr ) & ~(1 << data) | ((c & 0x100) >> (8 - data)) );
 				pc += 3;
 				continue;
 			
 			case 0xEA: // NOT1  m.b
 				data = mem [pc + 2];
 				addr = (data & 0x1F) << 8 | (mem [pc + 1] & 0xFF);
-				cpuWrite( addr, cpuRead( addr ) ^ (1 << (data >> 5 & 7)) );
+				write( addr, read( addr ) ^ (1 << (data >> 5 & 7)) );
 				pc += 3;
 				continue;
 			
@@ -503,7 +613,7 @@ public class SpcCpu extends MusicEmu
 			case 0x2A: // OR1   C, /m.b
 			case 0x8A: // EOR1  C, m.b
 				data = mem [pc + 2];
-				data = cpuRead( (data & 0x1F) << 8 | (mem [pc + 1] & 0xFF) ) << (8 - (data >> 5 & 7));
+				data = read( (data & 0x1F) << 8 | (mem [pc + 1] & 0xFF) ) << (8 - (data >> 5 & 7));
 				pc += 3;
 				switch ( opcode )
 				{
@@ -549,12 +659,12 @@ public class SpcCpu extends MusicEmu
 			case 0xB2: // CLR1  d.5
 			case 0xD2: // CLR1  d.6
 			case 0xF2:{// CLR1  d.7
-				data = cpuRead( addr = mem [pc + 1] & 0xFF | dp );
+				data = read( addr = mem [pc + 1] & 0xFF | dp );
 				int t = 1 << (opcode >> 5);
 				data |= t;
 				if ( (opcode & 0x10) != 0 )
 					data ^= t;
-				cpuWrite( addr, data );
+				write( addr, data );
 				pc += 2;
 				continue;
 			}
@@ -638,8 +748,8 @@ public class SpcCpu extends MusicEmu
 	
 			case 0xDA:{// MOVW  d, YA
 				int t = mem [pc + 1];
-				cpuWrite(  t      & 0xFF | dp, a );
-				cpuWrite( (t + 1) & 0xFF | dp, y );
+				write(  t      & 0xFF | dp, a );
+				write( (t + 1) & 0xFF | dp, y );
 				pc += 2;
 				continue;
 			}
@@ -655,7 +765,7 @@ public class SpcCpu extends MusicEmu
 				
 				// addr >= 0xEF || addr <= 0xFF
 				if ( (addr ^ 0xFF) <= 0x11 ) // 1%
-					data = cpuRead( addr + 1 ) << 8 | cpuRead( addr );
+					data = read( addr + 1 ) << 8 | read( addr );
 				
 				pc += 2;
 				switch ( opcode )
@@ -672,8 +782,8 @@ public class SpcCpu extends MusicEmu
 					// addr >= 0xEF || addr <= 0xFF
 					if ( (addr ^ 0xFF) <= 0x11 ) // 1%
 					{
-						cpuWrite( addr, data );
-						cpuWrite( addr + 1, data >> 8 );
+						write( addr, data );
+						write( addr + 1, data >> 8 );
 					}
 					continue;
 				
@@ -725,12 +835,12 @@ public class SpcCpu extends MusicEmu
 			case 0xE3: // BBS   d.7, r
 			case 0x6E: // DBNZ  d, r
 			case 0x2E: // CBNE  d, r
-				data = cpuRead( (addr = mem [pc + 1] & 0xFF | dp) );
+				data = read( (addr = mem [pc + 1] & 0xFF | dp) );
 				pc += 3;
 				break;
 			
 			case 0xDE: // CBNE  d+X, r
-				data = cpuRead( (addr = (mem [pc + 1] + x) & 0xFF | dp) );
+				data = read( (addr = (mem [pc + 1] + x) & 0xFF | dp) );
 				pc += 3;
 				break;
 			
@@ -758,7 +868,7 @@ public class SpcCpu extends MusicEmu
 			case 0xB8: // SBC   d, #i
 			case 0x18: // OR    d, #i
 				nz = mem [pc + 1] & 0xFF;
-				data = cpuRead( addr = mem [pc + 2] & 0xFF | dp );
+				data = read( addr = mem [pc + 2] & 0xFF | dp );
 				pc += 3;
 				break;
 				
@@ -768,8 +878,8 @@ public class SpcCpu extends MusicEmu
 			case 0x99: // ADC   (X), (Y)
 			case 0xB9: // SBC   (X), (Y)
 			case 0x19: // OR    (X), (Y)
-				nz = cpuRead( y + dp );
-				data = cpuRead( addr = x + dp );
+				nz = read( y + dp );
+				data = read( addr = x + dp );
 				pc++;
 				break;
 				
@@ -779,8 +889,8 @@ public class SpcCpu extends MusicEmu
 			case 0x89: // ADC   dd, ds
 			case 0xA9: // SBC   dd, ds
 			case 0x09: // OR    dd, ds
-				nz = cpuRead( mem [pc + 1] & 0xFF | dp );
-				data = cpuRead( addr = mem [pc + 2] & 0xFF | dp );
+				nz = read( mem [pc + 1] & 0xFF | dp );
+				data = read( addr = mem [pc + 2] & 0xFF | dp );
 				pc += 3;
 				break;
 			
@@ -805,7 +915,7 @@ public class SpcCpu extends MusicEmu
 			case 0xE9: // MOV   X, !a
 			case 0x5E: // CMP   Y, !a
 			case 0xEC: // MOV   Y, !a
-				nz = cpuRead( addr = (mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF) );
+				nz = read( addr = (mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF) );
 				pc += 3;
 				break;
 			
@@ -815,7 +925,7 @@ public class SpcCpu extends MusicEmu
 			case 0x95: // ADC   A, !a+X
 			case 0xB5: // SBC   A, !a+X
 			case 0x15: // OR    A, !a+X
-				nz = cpuRead( ((mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF)) + x );
+				nz = read( ((mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF)) + x );
 				pc += 3;
 				break;
 				
@@ -826,7 +936,7 @@ public class SpcCpu extends MusicEmu
 			case 0xB6: // SBC   A, !a+Y
 			case 0x16: // OR    A, !a+Y
 			case 0xF6: // MOV   A, !a+Y
-				nz = cpuRead( ((mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF)) + y );
+				nz = read( ((mem [pc + 2] & 0xFF) << 8 | (mem [pc + 1] & 0xFF)) + y );
 				pc += 3;
 				break;
 				
@@ -837,7 +947,7 @@ public class SpcCpu extends MusicEmu
 			case 0xA6: // SBC   A, (X)
 			case 0x06: // OR    A, (X)
 			case 0xE6: // MOV   A, (X)
-				nz = cpuRead( x + dp );
+				nz = read( x + dp );
 				pc++;
 				break;
 			
@@ -856,7 +966,7 @@ public class SpcCpu extends MusicEmu
 			case 0x3E: // CMP   X, d
 			case 0xF8: // MOV   X, d
 			case 0x7E: // CMP   Y, d
-				nz = cpuRead( addr = mem [pc + 1] & 0xFF | dp );
+				nz = read( addr = mem [pc + 1] & 0xFF | dp );
 				pc += 2;
 				break;
 			
@@ -873,7 +983,7 @@ public class SpcCpu extends MusicEmu
 			case 0x9B: // DEC   d+X
 			case 0xBB: // INC   d+X
 			case 0xFB: // MOV   Y, d+X
-				nz = cpuRead( addr = (mem [pc + 1] + x) & 0xFF | dp );
+				nz = read( addr = (mem [pc + 1] + x) & 0xFF | dp );
 				pc += 2;
 				break;
 				
@@ -885,7 +995,7 @@ public class SpcCpu extends MusicEmu
 			case 0x17: // OR    A, [d]+Y
 			case 0xF7:{// MOV   A, [d]+Y
 				int t = mem [pc + 1];
-				nz = cpuRead( ((mem [(t + 1) & 0xFF | dp] & 0xFF) << 8 | (mem [t & 0xFF | dp] & 0xFF)) + y );
+				nz = read( ((mem [(t + 1) & 0xFF | dp] & 0xFF) << 8 | (mem [t & 0xFF | dp] & 0xFF)) + y );
 				pc += 2;
 				break;
 			}
@@ -898,7 +1008,7 @@ public class SpcCpu extends MusicEmu
 			case 0x07: // OR    A, [d+X]
 			case 0xE7:{// MOV   A, [d+X]
 				int t = mem [pc + 1] + x;
-				nz = cpuRead( (mem [(t + 1) & 0xFF | dp] & 0xFF) << 8 | (mem [t & 0xFF | dp] & 0xFF) );
+				nz = read( (mem [(t + 1) & 0xFF | dp] & 0xFF) << 8 | (mem [t & 0xFF | dp] & 0xFF) );
 				pc += 2;
 				break;
 			}
@@ -968,7 +1078,7 @@ public class SpcCpu extends MusicEmu
 				continue;
 			
 			case 0x6E: // DBNZ  d, r
-				cpuWrite( addr, --data );
+				write( addr, --data );
 				if ( data != 0 )
 				{
 					pc += mem [pc - 1];
@@ -1084,7 +1194,7 @@ public class SpcCpu extends MusicEmu
 				psw = (psw & ~(v40 | h08)) |
 						(flags >> 1 & h08) |
 						((flags + 0x80) >> 2 & v40);
-				cpuWrite( addr, nz );
+				write( addr, nz );
 				continue;
 			}
 			
@@ -1103,7 +1213,7 @@ public class SpcCpu extends MusicEmu
 			case 0x39: // AND   (X), (Y)
 			case 0x38: // AND   d, #i
 			case 0x29: // AND   dd, ds
-				cpuWrite( addr, nz &= data );
+				write( addr, nz &= data );
 				continue;
 			
 			case 0x05: // OR    A, !a
@@ -1121,7 +1231,7 @@ public class SpcCpu extends MusicEmu
 			case 0x19: // OR    (X), (Y)
 			case 0x18: // OR    d, #i
 			case 0x09: // OR    dd, ds
-				cpuWrite( addr, nz |= data );
+				write( addr, nz |= data );
 				continue;
 				
 			case 0x45: // EOR   A, !a
@@ -1139,19 +1249,19 @@ public class SpcCpu extends MusicEmu
 			case 0x59: // EOR   (X), (Y)
 			case 0x58: // EOR   d, #i
 			case 0x49: // EOR   dd, ds
-				cpuWrite( addr, nz ^= data );
+				write( addr, nz ^= data );
 				continue;
 			
 			case 0x8C: // DEC   !a
 			case 0x8B: // DEC   d
 			case 0x9B: // DEC   d+X
-				cpuWrite( addr, --nz );
+				write( addr, --nz );
 				continue;
 			
 			case 0xAC: // INC   !a
 			case 0xAB: // INC   d
 			case 0xBB: // INC   d+X
-				cpuWrite( addr, ++nz );
+				write( addr, ++nz );
 				continue;
 			
 			case 0x0C: // ASL   !a
@@ -1163,7 +1273,7 @@ public class SpcCpu extends MusicEmu
 			case 0x3B:{// ROL   d+X
 				int t = c >> 8 & 1;
 				c = nz << 1;
-				cpuWrite( addr, nz = c | t );
+				write( addr, nz = c | t );
 				continue;
 			}
 			
@@ -1176,39 +1286,39 @@ public class SpcCpu extends MusicEmu
 			case 0x7B:{// ROR   d+X
 				int t = c & 0x100;
 				c = nz << 8;
-				cpuWrite( addr, nz = (nz | t) >> 1 );
+				write( addr, nz = (nz | t) >> 1 );
 				continue;
 			}
 			
 			case 0x4E:{// TCLR1 !a
 				int t = nz & ~a;
 				nz = (byte) (a - nz);
-				cpuWrite( addr, t );
+				write( addr, t );
 				continue;
 			}
 			
 			case 0x0E:{// TSET1 !a
 				int t = nz | a;
 				nz = (byte) (a - nz);
-				cpuWrite( addr, t );
+				write( addr, t );
 				continue;
 			}
 			
 			case 0xC4: // MOV   d, A
 			case 0xD4: // MOV   d+X, A
 			case 0xC5: // MOV   !a, A
-				cpuWrite( addr, a );
+				write( addr, a );
 				continue;
 			
 			case 0xD8: // MOV   d, X
 			case 0xC9: // MOV   !a, X
-				cpuWrite( addr, x );
+				write( addr, x );
 				continue;
 			
 			case 0xCB: // MOV   d, Y
 			case 0xDB: // MOV   d+X, Y
 			case 0xCC: // MOV   !a, Y
-				cpuWrite( addr, y );
+				write( addr, y );
 				continue;
 			
 			case 0xE5: // MOV   A, !a
@@ -50,18 +50,85 @@ public final class SpcDsp
 		}
 	}
 	
+	// Saves registers, voices and echo state. RAM, including echo buffer, is
+	// saved by the caller.
+	void saveState( StateWriter out )
+	{
+		out.putBytes( regs );
+		out.putInts( echo_hist );
+		out.putInt( echo_hist_pos );
+		out.putInt( every_other_sample );
+		out.putInt( kon );
+		out.putInt( lfsr );
+		out.putInt( echo_offset );
+		out.putInt( echo_length );
+		out.putInt( new_kon );
+		out.putInt( t_koff );
+		out.putInt( counter0.i );
+		out.putInt( counter1.i );
+		out.putInt( counter2.i );
+		out.putInt( counter3.i );
+		for ( int i = 0; i < voice_count; i++ )
+		{
+			Voice v = voices [i];
+			out.putInts( v.buf );
+			out.putInt( v.buf_pos );
+			out.putInt( v.interp_pos );
+			out.putInt( v.brr_addr );
+			out.putInt( v.brr_offset );
+			out.putInt( v.kon_delay );
+			out.putInt( v.env_mode );
+			out.putInt( v.env );
+			out.putInt( v.hidden_env );
+		}
+	}
+	
+	// Restores state saved by saveState(). Must be called after init().
+	void loadState( StateReader in )
+	{
+		in.getBytes( regs );
+		in.getInts( echo_hist );
+		echo_hist_pos      = in.getInt( 0, echo_hist_half - 1 );
+		every_other_sample = in.getInt( 0, 1 );
+		kon                = in.getInt( 0, 0xFF );
+		lfsr               = in.getInt( 0, 0xFFFF );
+		echo_offset        = in.getInt( 0, 0x7FFC );
+		echo_length        = in.getInt( 0, 0x0F << 11 );
+		new_kon            = in.getInt( 0, 0xFF );
+		t_koff             = in.getInt( 0, 0xFF );
+		counter0.i         = in.getInt();
+		counter1.i         = in.getInt();
+		counter2.i         = in.getInt();
+		counter3.i         = in.getInt();
+		for ( int i = 0; i < voice_count; i++ )
+		{
+			Voice v = voices [i];
+			in.getInts( v.buf );
+			v.buf_pos    = in.getInt( 0, brr_buf_size - 4 );
+			if ( (v.buf_pos & 3) != 0 ) // decoded four at a time
+				StateReader.invalid();
+			v.interp_pos = in.getInt( 0, 0x7FFF );
+			v.brr_addr   = in.getInt( 0, 0xFFFF );
+			v.brr_offset = in.getInt( 1, 7 );
+			v.kon_delay  = in.getInt( 0, 5 );
+			v.env_mode   = in.getInt( env_release, env_sustain );
+			v.env        = in.getInt( 0, 0x7FF );
+			v.hidden_env = in.getInt();
+		}
+	}
+	
 	// Sets output volume, where 1.0 is normal and 2.0 is twice as loud
 	public void setVolume( double v ) { volume = (int) (v * 0x8000); }
 	
 	// Sets buffer to write samples into
-	public void setOutput( byte [] out )
+	public void setOutput( short [] out )
 	{
 		this.out = out;
 		out_pos  = 0;
 	}
 	
 	// Number of samples written into buffer (stereo, so always a multiple of 2)
-	public int sampleCount() { return out_pos >> 1; }
+	public int sampleCount() { return out_pos; }
 	
 	// Writes to DSP register
 	public void write( int addr, int data )
@@ -131,9 +198,9 @@ public final class SpcDsp
 		final int evoll = (regs [r_evoll] * volume) >> 15;
 		final int evolr = (regs [r_evolr] * volume) >> 15;
 		
-		final byte [] out = this.out;
+		final short [] out = this.out;
 		int out_pos = this.out_pos;
-		final int out_end = out_pos + (sampleCount << 2);
+		final int out_end = out_pos + (sampleCount << 1);
 		
 		do
 		{
@@ -495,15 +562,13 @@ public final class SpcDsp
 			// Sound out
 			int l = (main_out_l * mvoll + echo_in_l * evoll) >> 14;
 			if ( (short) l != l ) l = (l >> 24) ^ 0x7FFF; // 16-bit clamp
-			out [out_pos    ] = (byte) (l >> 8);
-			out [out_pos + 1] = (byte) l;
+			out [out_pos    ] = (short) l;
 			
 			int r = (main_out_r * mvolr + echo_in_r * evolr) >> 14;
 			if ( (short) r != r ) r = (r >> 24) ^ 0x7FFF; // 16-bit clamp
-			out [out_pos + 2] = (byte) (r >> 8);
-			out [out_pos + 3] = (byte) r;
+			out [out_pos + 1] = (short) r;
 		}
-		while ( (out_pos += 4) < out_end );
+		while ( (out_pos += 2) < out_end );
 		
 		this.out_pos = out_pos;
 	}
@@ -578,7 +643,7 @@ public final class SpcDsp
 	int t_koff;
 	int volume;
 	byte [] ram; // 64K shared RAM between DSP and SMP
-	byte [] out; // sample output
+	short [] out; // sample output
 	int out_pos;
 	
 	// 0: >>1  1: <<0  2: <<1 ... 12: <<11  13-15: >>4 <<11
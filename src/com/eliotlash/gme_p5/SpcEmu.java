@@ -68,6 +68,9 @@ final class SpcEmu extends SpcCpu
 	final int []	regsIn = new int [regCount];
 	final SpcDsp	dsp    = new SpcDsp();
 	final Timer []	timers = new Timer [timerCount];
+	boolean			skipping;    // DSP isn't run while true
+	int				skippedKon;  // voices keyed on/off while skipping
+	int				skippedKoff;
 
 	protected int setSampleRate_( int rate ) { return 32000; }
 	
@@ -116,6 +119,17 @@ final class SpcEmu extends SpcCpu
 			runTimer_( t, time );
 	}
 	
+	// Counter goes up on the edge at which divider reaches period
+	protected int timerTickTime( int addr )
+	{
+		Timer t = timers [addr - 0xFD];
+		if ( t.enabled == 0 )
+			return Integer.MAX_VALUE;
+		
+		int remain = ((t.period - t.divider - 1) & 0xFF) + 1;
+		return t.time + ((remain - 1) << t.prescaler);
+	}
+	
 	// Enables/disables boot ROM by swapping it out of RAM
 	private void enableRom( int enable )
 	{
@@ -150,6 +164,13 @@ final class SpcEmu extends SpcCpu
 		
 		// CPU
 		reset( ram );
+		
+		// Registers at $F0-$FF need cpuRead() and cpuWrite(), as do writes to
+		// IPL ROM area, and indexed addresses that wrapped around
+		setDirect( 0,       0xF0,            true, true  );
+		setDirect( 0x100,   romAddr - 0x100, true, true  );
+		setDirect( romAddr, romSize,         true, false );
+		
 		pc = (spc [cpuStateOff + 1] & 0xFF) << 8 | (spc [cpuStateOff] & 0xFF);
 		a  = spc [cpuStateOff + 2] & 0xFF;
 		x  = spc [cpuStateOff + 3] & 0xFF;
@@ -186,7 +207,53 @@ final class SpcEmu extends SpcCpu
 		timers [1].prescaler = 4 + 3;
 		timers [0].prescaler = 4 + 3;
 		
-		// Clear echo
+		clearEcho();
+	}
+	
+	protected void saveState_( StateWriter out )
+	{
+		super.saveState_( out );
+		out.putInt( dspTime );
+		out.putInt( romEnabled );
+		out.putBytes( ram, 0, ramSize );
+		out.putBytes( hiRam );
+		out.putInts( regs );
+		out.putInts( regsIn );
+		for ( int i = 0; i < timerCount; i++ )
+		{
+			Timer t = timers [i];
+			out.putInt( t.time );
+			out.putInt( t.period );
+			out.putInt( t.divider );
+			out.putInt( t.enabled );
+			out.putInt( t.counter );
+		}
+		dsp.saveState( out );
+	}
+	
+	protected void loadState_( StateReader in )
+	{
+		super.loadState_( in );
+		dspTime    = in.getInt( time + 1, time + 32 ); // DSP is run to just past CPU
+		romEnabled = in.getInt( 0, 0x80 );
+		in.getBytes( ram, 0, ramSize );
+		in.getBytes( hiRam );
+		in.getIntsInRange( regs, 0, 0xFF );
+		in.getIntsInRange( regsIn, 0, 0xFF );
+		for ( int i = 0; i < timerCount; i++ )
+		{
+			Timer t = timers [i];
+			t.time    = in.getInt();
+			t.period  = in.getInt( 1, 0x100 );
+			t.divider = in.getInt( 0, 0xFF );
+			t.enabled = in.getInt( 0, 1 );
+			t.counter = in.getInt( 0, 0x0F );
+		}
+		dsp.loadState( in );
+	}
+	
+	private void clearEcho()
+	{
 		if ( (dsp.regs [dsp.r_flg] & 0x20) == 0 )
 		{
 			int addr = (dsp.regs [dsp.r_esa] & 0xFF) << 8;
@@ -197,10 +264,9 @@ final class SpcEmu extends SpcCpu
 		}
 	}
 	
-	protected int play_( byte out [], int count )
+	// Runs CPU for count samples and returns false if emulation error occurred
+	private boolean runCpuSamples( int count )
 	{
-		dsp.setOutput( out );
-		
 		// Run for count/2*32 clocks + extra to get DSP time half-way between samples,
 		// since CPU might run for slightly less than requested
 		int clockCount = count * (32 / 2) + 16 - ((time - dspTime) & 31);
@@ -214,13 +280,25 @@ final class SpcEmu extends SpcCpu
 		if ( time < 0 ) // emulation error
 		{
 			logError();
-			return 0;
+			return false;
 		}
 		
 		// Catch up to CPU
 		runTimer( timers [0], time );
 		runTimer( timers [1], time );
 		runTimer( timers [2], time );
+		return true;
+	}
+	
+	protected int play_( short out [], int count )
+	{
+		dsp.setOutput( out );
+		
+		final int start = time - skippedTime;
+		if ( !runCpuSamples( count ) )
+			return 0;
+		if ( Metrics.enabled )
+			Metrics.record( Metrics.cpuClocks, time - skippedTime - start + (count << 4) );
 		
 		// Run DSP to present
 		int delta;
@@ -235,6 +313,40 @@ final class SpcEmu extends SpcCpu
 		return dsp.sampleCount();
 	}
 	
+	// Runs only the CPU for all but the last quarter second, noting key on/off
+	// writes, then restarts keyed voices in the DSP and plays the rest normally.
+	// Same approach as snes_spc.
+	protected void skip_( int count )
+	{
+		final int settle = sampleRate() / 4 * 2;
+		if ( count > settle * 2 )
+		{
+			int remain = count - settle;
+			skippedKon  = dsp.new_kon & ~dsp.kon & 0xFF; // not yet seen by DSP
+			skippedKoff = 0;
+			skipping = true;
+			while ( remain > 0 && !trackEnded_ )
+			{
+				int n = (remain < skipChunk ? remain : skipChunk);
+				if ( !runCpuSamples( n ) )
+					break;
+				
+				// Advance DSP time without running it
+				int delta;
+				if ( (delta = time - dspTime) >= 0 )
+					dspTime += ((delta >> 5) + 1) << 5;
+				remain -= n;
+			}
+			skipping = false;
+			count = settle + remain;
+			
+			dsp.write( SpcDsp.r_koff, skippedKoff & ~skippedKon );
+			dsp.write( SpcDsp.r_kon,  skippedKon );
+			clearEcho();
+		}
+		super.skip_( count );
+	}
+	
 	// Writes to SMP register
 	private void writeReg( int addr, int data )
 	{
@@ -306,6 +418,19 @@ final class SpcEmu extends SpcCpu
 		}
 	}
 	
+	// Notes key on/off that the DSP won't see because it isn't running
+	private void skipDspWrite( int addr, int data )
+	{
+		if ( addr == SpcDsp.r_kon )
+			skippedKon |= data & ~dsp.regs [SpcDsp.r_koff];
+		
+		if ( addr == SpcDsp.r_koff )
+		{
+			skippedKoff |= data;
+			skippedKon  &= ~data;
+		}
+	}
+	
 	public final void cpuWrite( int addr, int data )
 	{
 		// RAM
@@ -327,7 +452,7 @@ final class SpcEmu extends SpcCpu
 					{
 						// Run DSP to present
 						int delta;
-						if ( (delta = time - dspTime) >= 0 ) // 95%
+						if ( (delta = time - dspTime) >= 0 && !skipping ) // 95%
 						{
 							delta = (delta >> 5) + 1;
 							dspTime += delta << 5;
@@ -336,7 +461,11 @@ final class SpcEmu extends SpcCpu
 						
 						int dspaddr;
 						if ( (dspaddr = regs [dspaddrReg]) <= 0x7F )
+						{
+							if ( skipping )
+								skipDspWrite( dspaddr, data );
 							dsp.write( dspaddr, data );
+						}
 					}
 					else
 					{
@@ -392,7 +521,7 @@ final class SpcEmu extends SpcCpu
 				
 				// Run to present
 				int delta;
-				if ( (delta = time - dspTime) >= 0 ) // 1%
+				if ( (delta = time - dspTime) >= 0 && !skipping ) // 1%
 				{
 					delta = (delta >> 5) + 1;
 					dspTime += delta << 5;
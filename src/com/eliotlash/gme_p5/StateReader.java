@@ -0,0 +1,104 @@
+package com.eliotlash.gme_p5;
+
+// Reads emulator state written by StateWriter, for MusicEmu.loadState()
+
+/* Each get method throws Error( "Invalid saved state" ) if data runs out or,
+for getInt( min, max ), if the value is out of range, so a damaged state is
+rejected as it's read rather than used. */
+
+final class StateReader
+{
+	public StateReader( byte [] data )
+	{
+		this.data = data;
+		this.pos  = 0;
+	}
+	
+	public int getInt()
+	{
+		int n = 0;
+		int shift = 0;
+		int b;
+		do
+		{
+			if ( shift > 28 )
+				invalid();
+			b = getByte();
+			n |= (b & 0x7F) << shift;
+			shift += 7;
+		}
+		while ( (b & 0x80) != 0 );
+		return (n >>> 1) ^ -(n & 1);
+	}
+	
+	public boolean getBool() { return getByte() != 0; }
+	
+	public void getInts( int [] out, int pos, int count )
+	{
+		for ( int i = 0; i < count; i++ )
+			out [pos + i] = getInt();
+	}
+	
+	public void getInts( int [] out ) { getInts( out, 0, out.length ); }
+	
+	// Reads ints and checks that each is within min to max, inclusive
+	public void getIntsInRange( int [] out, int min, int max )
+	{
+		for ( int i = 0; i < out.length; i++ )
+			out [i] = getInt( min, max );
+	}
+	
+	public void getBools( boolean [] out )
+	{
+		for ( int i = 0; i < out.length; i++ )
+			out [i] = getBool();
+	}
+	
+	public void getBytes( byte [] out, int pos, int count )
+	{
+		final int end = pos + count;
+		while ( pos < end )
+		{
+			int lit = getInt( 0, end - pos );
+			if ( lit > data.length - this.pos )
+				invalid();
+			System.arraycopy( data, this.pos, out, pos, lit );
+			this.pos += lit;
+			pos += lit;
+			
+			int zeroes = getInt( 0, end - pos );
+			if ( lit + zeroes == 0 )
+				invalid();
+			java.util.Arrays.fill( out, pos, pos + zeroes, (byte) 0 );
+			pos += zeroes;
+		}
+	}
+	
+	public void getBytes( byte [] out ) { getBytes( out, 0, out.length ); }
+	
+	// Reads int and checks that it's within min to max, inclusive
+	public int getInt( int min, int max )
+	{
+		int n = getInt();
+		if ( n < min || n > max )
+			invalid();
+		return n;
+	}
+	
+	// True if all data has been read
+	public boolean atEnd() { return pos >= data.length; }
+
+// private
+	
+	final byte [] data;
+	int pos;
+	
+	int getByte()
+	{
+		if ( pos >= data.length )
+			invalid();
+		return data [pos++] & 0xFF;
+	}
+	
+	static void invalid() { throw new Error( "Invalid saved state" ); }
+}
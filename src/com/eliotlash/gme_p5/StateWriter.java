@@ -0,0 +1,91 @@
+package com.eliotlash.gme_p5;
+
+// Compact binary encoding of emulator state, for MusicEmu.saveState()/loadState()
+
+/* Ints are stored as zig-zag variable-length values, so the small counters
+and register values that make up most state take one or two bytes each.
+Byte arrays (RAM) have runs of zeroes removed. There are no field names or
+tags; the reader must read fields back in exactly the order they were
+written. */
+
+final class StateWriter
+{
+	public void putInt( int n )
+	{
+		n = (n << 1) ^ (n >> 31);
+		while ( (n & ~0x7F) != 0 )
+		{
+			putByte( n & 0x7F | 0x80 );
+			n >>>= 7;
+		}
+		putByte( n );
+	}
+	
+	public void putBool( boolean b ) { putByte( b ? 1 : 0 ); }
+	
+	public void putInts( int [] in, int pos, int count )
+	{
+		for ( int i = 0; i < count; i++ )
+			putInt( in [pos + i] );
+	}
+	
+	public void putInts( int [] in ) { putInts( in, 0, in.length ); }
+	
+	public void putBools( boolean [] in )
+	{
+		for ( int i = 0; i < in.length; i++ )
+			putBool( in [i] );
+	}
+	
+	// Byte arrays are stored as alternating runs of literal bytes and zeroes,
+	// since most RAM in a music file is unused
+	public void putBytes( byte [] in, int pos, int count )
+	{
+		final int end = pos + count;
+		while ( pos < end )
+		{
+			// literal run ends at next minZeroRun zeroes
+			int lit = pos;
+			int zeroes = 0;
+			while ( lit < end && zeroes < minZeroRun )
+				zeroes = (in [lit++] == 0 ? zeroes + 1 : 0);
+			if ( zeroes >= minZeroRun )
+				lit -= zeroes;
+			
+			putInt( lit - pos );
+			reserve( lit - pos );
+			System.arraycopy( in, pos, data, size, lit - pos );
+			size += lit - pos;
+			
+			pos = lit;
+			while ( pos < end && in [pos] == 0 )
+				pos++;
+			putInt( pos - lit );
+		}
+	}
+	
+	public void putBytes( byte [] in ) { putBytes( in, 0, in.length ); }
+	
+	// Encoded state
+	public byte [] toByteArray() { return DataReader.resize( data, size ); }
+
+// private
+	
+	static final int minZeroRun = 4;
+	
+	byte [] data = new byte [0x1000];
+	int size;
+	
+	void putByte( int b )
+	{
+		if ( size >= data.length )
+			reserve( 1 );
+		data [size++] = (byte) b;
+	}
+	
+	void reserve( int count )
+	{
+		if ( size + count > data.length )
+			data = DataReader.resize( data, Math.max( data.length * 2, size + count ) );
+	}
+}
@@ -0,0 +1,208 @@
+package com.eliotlash.gme_p5;
+
+// Mixes several music emulators into one stereo stream, each with its own gain and pan
+
+/* The mixer is itself a MusicEmu with a single endless track, so EmuPlayer
+plays it like any other emulator: one block is synthesized from all streams
+and written to the line once. Each stream is played into its own buffer and
+accumulated into a long buffer at fixed-point gain, so that any number of
+streams can be summed without overflow, then the sum is saturated to 16
+bits. No memory is allocated once the buffers have reached the block
+size. Streams may be added, removed and adjusted from any thread while the
+mixer plays; the stream list is replaced rather than modified, so the mixing
+thread never needs a lock.
+
+Usage:
+	StreamMixer mixer = new StreamMixer( 44100 );
+	StreamMixer.Stream music = mixer.add( emu ); // emu has its track started
+	music.setGain( 0.5 );
+	player.playMixer( mixer ); */
+
+public final class StreamMixer extends MusicEmu
+{
+	public StreamMixer( int sampleRate )
+	{
+		setSampleRate( sampleRate );
+		trackCount_ = 1;
+	}
+	
+	// One emulator being mixed
+	public static final class Stream
+	{
+		final MusicEmu emu;
+		volatile int gainL = mixUnit;
+		volatile int gainR = mixUnit;
+		double gain = 1.0;
+		double pan;
+		short [] buf = new short [0];
+		volatile long nanos;
+		volatile long samples;
+		
+		Stream( MusicEmu emu ) { this.emu = emu; }
+		
+		// Emulator this stream plays
+		public MusicEmu emu() { return emu; }
+		
+		// Sets volume, where 1.0 is normal, 2.0 is twice as loud. Limited to
+		// 0.0 through maxGain.
+		public synchronized void setGain( double g )
+		{
+			gain = Math.max( 0.0, Math.min( g, maxGain ) );
+			update();
+		}
+		
+		// Sets pan from -1.0 (left only) through 0.0 (center) to 1.0 (right only).
+		// The channel panned away from is attenuated; the other is left at full gain.
+		public synchronized void setPan( double p )
+		{
+			pan = Math.max( -1.0, Math.min( p, 1.0 ) );
+			update();
+		}
+		
+		// True if stream's track has ended. It contributes nothing and costs
+		// nothing, but stays in mixer until removed.
+		public boolean isEnded() { return emu.trackEnded(); }
+		
+		// Nanoseconds spent synthesizing this stream since it was added
+		public long cpuNanos() { return nanos; }
+		
+		// Fraction of real time spent synthesizing this stream, where 1.0 means
+		// it takes as long to synthesize as it does to play
+		public double cpuLoad()
+		{
+			long n = samples;
+			return n > 0 ? nanos * 1.0e-9 / ((double) n / 2 / emu.sampleRate()) : 0.0;
+		}
+		
+		void update()
+		{
+			gainL = (int) (gain * Math.min( 1.0, 1.0 - pan ) * mixUnit + 0.5);
+			gainR = (int) (gain * Math.min( 1.0, 1.0 + pan ) * mixUnit + 0.5);
+		}
+	}
+	
+	// Adds stream playing emulator, which must already have its track started
+	// and use the mixer's sample rate
+	public Stream add( MusicEmu emu )
+	{
+		if ( emu.sampleRate() != sampleRate() )
+			error( "Stream sample rate differs from mixer's" );
+		
+		Stream s = new Stream( emu );
+		synchronized ( this )
+		{
+			Stream [] old = streams;
+			Stream [] list = java.util.Arrays.copyOf( old, old.length + 1 );
+			list [old.length] = s;
+			streams = list;
+		}
+		return s;
+	}
+	
+	// Removes stream from mixer. Does nothing if it was already removed.
+	public synchronized void remove( Stream s )
+	{
+		Stream [] old = streams;
+		Stream [] list = new Stream [old.length];
+		int count = 0;
+		for ( int i = 0; i < old.length; i++ )
+			if ( old [i] != s )
+				list [count++] = old [i];
+		streams = java.util.Arrays.copyOf( list, count );
+	}
+	
+	// Removes streams whose tracks have ended
+	public synchronized void removeEnded()
+	{
+		Stream [] old = streams;
+		for ( int i = 0; i < old.length; i++ )
+			if ( old [i].isEnded() )
+				remove( old [i] );
+	}
+	
+	// Highest gain a stream can be set to. A full-scale sample times this
+	// gain still fits in an int before being added to the mix.
+	public static final double maxGain = 8.0;
+	
+	// Streams currently being mixed
+	public Stream [] streams() { return streams.clone(); }
+	
+	// Nanoseconds spent mixing, not including synthesis of streams
+	public long mixNanos() { return mixNanos; }
+
+// protected
+	
+	protected int play_( short [] out, int count )
+	{
+		final Stream [] streams = this.streams;
+		if ( mix.length < count )
+			mix = new long [count];
+		final long [] mix = this.mix;
+		
+		long mixTime = 0;
+		boolean first = true;
+		for ( int n = 0; n < streams.length; n++ )
+		{
+			final Stream s = streams [n];
+			if ( s.emu.trackEnded() )
+				continue;
+			
+			if ( s.buf.length < count )
+				s.buf = new short [count];
+			final short [] in = s.buf;
+			
+			long start = System.nanoTime();
+			int got = s.emu.play( in, count );
+			long played = System.nanoTime();
+			s.nanos   += played - start;
+			s.samples += got;
+			
+			// first stream sets mix rather than adding to it, so mix needn't be cleared
+			final int l = s.gainL;
+			final int r = s.gainR;
+			if ( first )
+			{
+				for ( int i = 0; i < got; i += 2 )
+				{
+					mix [i    ] = in [i    ] * l;
+					mix [i + 1] = in [i + 1] * r;
+				}
+				java.util.Arrays.fill( mix, got, count, 0 );
+				first = false;
+			}
+			else
+			{
+				for ( int i = 0; i < got; i += 2 )
+				{
+					mix [i    ] += in [i    ] * l;
+					mix [i + 1] += in [i + 1] * r;
+				}
+			}
+			mixTime += System.nanoTime() - played;
+		}
+		
+		long start = System.nanoTime();
+		if ( first )
+		{
+			java.util.Arrays.fill( out, 0, count, (short) 0 );
+		}
+		else
+		{
+			// 16-bit saturation, written without branches so it vectorizes
+			for ( int i = 0; i < count; i++ )
+				out [i] = (short) Math.max( -0x8000, Math.min( mix [i] >> mixShift, 0x7FFF ) );
+		}
+		mixNanos += mixTime + System.nanoTime() - start;
+		
+		return count;
+	}
+
+// private
+	
+	static final int mixShift = 12;
+	static final int mixUnit  = 1 << mixShift;
+	
+	volatile Stream [] streams = new Stream [0];
+	long [] mix = new long [0];
+	volatile long mixNanos;
+}
@@ -16,6 +16,13 @@ package com.eliotlash.gme_p5;
 
 import javax.sound.sampled.*;
 import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import processing.core.PApplet;
 
 /* Copyright (C) 2007-2008 Shay Green. This module is free software; you
@@ -37,29 +44,20 @@ class EmuPlayer implements Runnable
 	public int getTrackCount() { return emu.trackCount(); }
 	
 	// Starts new track playing, where 0 is the first track.
-	// After time seconds, the track starts fading.
+	// After time seconds, the track starts fading. Returns immediately;
+	// the switch is made by the emulation thread.
 	public void startTrack( int track, int time ) throws Exception
 	{
-		pause();
-		if ( line != null )
-			line.flush();
-		emu.startTrack( track );
-		emu.setFade( time, 6 );
-		play();
+		startTrack_( track, time );
 	}
 
     void startTrack(int track) throws Exception
     {
-		pause();
-		if ( line != null )
-			line.flush();
-		emu.startTrack( track );
-		//emu.setFade( time, 6 );
-		play();
+		startTrack_( track, -1 );
     }
 	
 	// Currently playing track
-	public int getCurrentTrack() { return emu.currentTrack(); }
+	public int getCurrentTrack() { return track_; }
 	
 	// Number of seconds played since last startTrack() call
 	public int getCurrentTime() { return (emu == null ? 0 : emu.currentTime()); }
@@ -69,44 +67,80 @@ class EmuPlayer implements Runnable
 	public void setVolume( double v )
 	{
 		volume_ = v;
-		
-		if ( line != null )
-		{
-			FloatControl mg = (FloatControl) line.getControl( FloatControl.Type.MASTER_GAIN );
-			if ( mg != null )
-				mg.setValue( (float) (Math.log( v ) / Math.log( 10.0 ) * 20.0) );
-		}
+		volumeChanged = true; // applied by output thread
 	}
 	
 	// Current playback volume
 	public double getVolume() { return volume_; }
 	
-	// Pauses if track was playing.
+	// Pauses if track was playing. Samples already buffered are kept and
+	// played when resumed.
 	public void pause() throws Exception
 	{
-		if ( thread != null )
-		{
-			playing_ = false;
-			thread.join();
-			thread = null;
-		}
+		playing_ = false;
+		LockSupport.unpark( thread );
 	}
 	
+	// Sets how much audio is synthesized ahead of output, in milliseconds.
+	// Takes effect when next track is started.
+	public void setBufferLength( int msec ) { bufferMsec = msec; }
+	
+	// In low-latency mode, only a few milliseconds are kept synthesized ahead
+	// and the audio line's buffer is smaller, so changes such as starting a
+	// new track are heard sooner, at greater risk of underruns.
+	public void setLowLatency( boolean lowLatency )
+	{
+		lowLatency_ = lowLatency; // output thread reopens line with new buffer size
+		LockSupport.unpark( thread );
+	}
+	
+	public boolean isLowLatency() { return lowLatency_; }
+	
+	// Number of times output found no synthesized samples waiting, since
+	// player was created. Each is a likely audible dropout.
+	public int getUnderruns() { return underruns; }
+	
+	// Number of samples currently synthesized ahead of output
+	public int getFillLevel() { return (ring == null ? 0 : ring.available()); }
+	
+	// Number of samples that can be synthesized ahead of output
+	public int getBufferCapacity() { return (ring == null ? 0 : targetFill()); }
+	
+	// Sets length of crossfade into track queued to play next, in milliseconds.
+	// The queued track fades in over the last part of the current track's fade.
+	// With 0 (the default), it starts right after the current track ends.
+	public void setCrossfade( int msec ) { crossfadeMsec = msec; }
+	
+	// Sets shape of fade-outs set by startTrack() and queueFileFromPath() from
+	// now on. FadeCurve.log is the default.
+	public void setFadeShape( FadeCurve.Shape shape ) { fadeShape = shape; }
+	
+	// Fades current track in from silence over msec, with gain following shape
+	// played backwards. Call just after startTrack() to fade in from its start.
+	public void setFadeIn( final int msec, final FadeCurve.Shape shape )
+	{
+		command( new Runnable() {
+			public void run()
+			{
+				if ( current != null )
+					current.setFadeIn( msec, shape );
+			}
+		} );
+	}
+	
+	// True if a track is loaded and waiting to play after the current one
+	public boolean isNextQueued() { return nextQueued; }
+	
 	// True if track is currently playing
-	public boolean isPlaying() { return playing_; }
+	public boolean isPlaying() { return playing_ && doneGen != requestGen.get(); }
 	
 	// Resumes playback where it was paused
 	public void play() throws Exception
 	{
-		if ( line == null )
-		{
-			line = getSourceDataLine(audioFormat, 8192/*1024*/);//(SourceDataLine) AudioSystem.getLine( lineInfo );
-			//line.open( audioFormat );
-			setVolume( volume_ );
-		}
-		thread = new Thread( this );
+		startThreads();
 		playing_ = true;
-		thread.start();
+		LockSupport.unpark( producer );
+		LockSupport.unpark( thread );
 	}
 
 	SourceDataLine getSourceDataLine(AudioFormat format, int bufferSize)
@@ -173,16 +207,17 @@ class EmuPlayer implements Runnable
 		}
 	}
 
-	// Stops playback and closes audio
+	// Stops playback, forgets any queued track, and closes audio
 	public void stop() throws Exception
 	{
-		pause();
+		playing_  = false;
+		closeLine = true;
+		LockSupport.unpark( thread );
 		
-		if ( line != null )
-		{
-			line.close();
-			line = null;
-		}
+		nextSerial.incrementAndGet(); // cancels any queueing in progress
+		command( new Runnable() {
+			public void run() { clearNext(); }
+		} );
 	}
 	
 	// Called periodically when a track is playing
@@ -190,74 +225,430 @@ class EmuPlayer implements Runnable
 	
 // private
 
-	// Sets music emulator to get samples from
-	void setEmu( MusicEmu emu, int sampleRate ) throws Exception
+	// Sets music emulator to get samples from. Emulation thread switches to
+	// it once it has finished any commands already queued.
+	void setEmu( final MusicEmu emu, int sampleRate ) throws Exception
 	{
 		stop();
 		this.emu = emu;
-		if ( emu != null && line == null && this.sampleRate != sampleRate )
+		if ( emu != null && this.sampleRate != sampleRate )
+			setFormat( sampleRate );
+		
+		final int gen = requestGen.incrementAndGet();
+		command( new Runnable() {
+			public void run()
+			{
+				current = emu;
+				flush( gen );
+				endedGen = gen; // nothing to play until a track is started
+			}
+		} );
+	}
+	
+	void setFormat( int sampleRate )
+	{
+		audioFormat = new AudioFormat( AudioFormat.Encoding.PCM_SIGNED,
+				sampleRate, 16, 2, 4, sampleRate, true );
+		lineInfo = new DataLine.Info( SourceDataLine.class, audioFormat );
+		this.sampleRate = sampleRate;
+	}
+	
+	// Queues emulator, with its track already started, to play once current
+	// track ends. Ignored if stop() has been called since serial was obtained
+	// from nextSerial.
+	void queueEmu( final MusicEmu emu, final int sampleRate, final int serial )
+	{
+		command( new Runnable() {
+			public void run()
+			{
+				if ( serial == nextSerial.get() )
+				{
+					clearNext();
+					next       = emu;
+					nextRate   = sampleRate;
+					nextQueued = true;
+				}
+			}
+		} );
+	}
+	
+	// Called by emulation thread when it has switched to queued track
+	protected void nextStarted() { }
+	
+	private volatile int sampleRate = 0;
+	volatile AudioFormat audioFormat;
+	volatile DataLine.Info lineInfo;
+	volatile MusicEmu emu;    // as seen by caller
+	volatile int track_;
+	Thread thread;            // output
+	volatile boolean playing_;
+	volatile SourceDataLine line;
+	volatile double volume_ = 1.0;
+	volatile boolean volumeChanged;
+	volatile boolean closeLine;
+	
+	// Emulation runs on its own thread and output on another, joined by a ring
+	// buffer, so that neither waits for the other unless the ring is full or empty.
+	// Both threads are started once and live as long as the player. Anything that
+	// touches the emulator is queued as a command for the emulation thread, which
+	// runs it between chunks, so callers never wait on either thread.
+	
+	/* Starting a track doesn't touch the ring, since only the output thread may
+	remove samples. Each track started gets a new generation number; the
+	emulation thread publishes it along with the ring position where the new
+	track's samples begin, and the output thread discards everything before
+	that position when it sees the generation change. */
+	
+	static final int chunkSize      = 2048; // samples per emu.play() call
+	static final int lowLatencyMsec = 20;   // synthesized ahead in low-latency mode
+	static final long idleNanos     = 1000000;
+	
+	int bufferMsec = 250;
+	volatile boolean lowLatency_;
+	volatile int underruns;
+	
+	// Generations: requested by caller, published by emulation thread when
+	// it begins track, emulation ended, and output of track finished
+	final AtomicInteger requestGen = new AtomicInteger();
+	volatile int flushGen;
+	volatile int endedGen;
+	volatile int doneGen;
+	volatile SampleRing flushRing;
+	volatile long flushPos;
+	
+	// Emulation thread
+	final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<Runnable>();
+	Thread producer;
+	MusicEmu current;
+	volatile SampleRing ring;
+	int ringSize;
+	int gen_;
+	
+	// Track queued to play next, and crossfade into it
+	final AtomicInteger nextSerial = new AtomicInteger();
+	volatile boolean nextQueued;
+	volatile int crossfadeMsec;
+	volatile FadeCurve.Shape fadeShape = FadeCurve.log;
+	MusicEmu next;
+	int nextRate;
+	int nextGen;      // generation to use if next can't continue current one
+	boolean nextFading; // crossfade into next has begun
+	short [] mix = new short [chunkSize];
+	
+	int msecToSamples( int msec ) { return (int) ((long) sampleRate * msec / 1000) * 2; }
+	
+	synchronized void startThreads()
+	{
+		if ( thread == null )
 		{
-			audioFormat = new AudioFormat( AudioFormat.Encoding.PCM_SIGNED,
-					sampleRate, 16, 2, 4, sampleRate, true );
-			lineInfo = new DataLine.Info( SourceDataLine.class, audioFormat );
-			this.sampleRate = sampleRate;
+			thread   = new Thread( this, "EmuPlayer output" );
+			producer = new Thread( "EmuPlayer emulation" ) {
+				public void run() { produce(); }
+			};
+			thread.setDaemon( true );
+			producer.setDaemon( true );
+			producer.start();
+			thread.start();
 		}
 	}
 	
-	private int sampleRate = 0;
-	AudioFormat audioFormat;
-	DataLine.Info lineInfo;
-	MusicEmu emu;
-	Thread thread;
-	volatile boolean playing_;
-	SourceDataLine line;
-	double volume_ = 1.0;
+	// Queues command for emulation thread
+	void command( Runnable r )
+	{
+		startThreads();
+		commands.add( r );
+		LockSupport.unpark( producer );
+	}
 	
-	public void run()
+	void startTrack_( final int track, final int time )
 	{
-		line.start();
-		
-		// play track until stop signal
-		byte [] buf = new byte [8192];
-        int bytesWritten = 0;
-		while ( playing_ && !emu.trackEnded() )
+		final int gen = requestGen.incrementAndGet();
+		track_   = track;
+		playing_ = true;
+		command( new Runnable() {
+			public void run()
+			{
+				current.startTrack( track );
+				if ( time >= 0 )
+					current.setFade( time, 6, fadeShape );
+				flush( gen );
+			}
+		} );
+		LockSupport.unpark( thread );
+	}
+	
+	// Has output thread discard samples of previous track. Emulation thread only.
+	void flush( int gen )
+	{
+		int size = msecToSamples( bufferMsec );
+		if ( ring == null || ringSize != size )
 		{
-			int count = emu.play( buf, buf.length / 2 );
-            boolean shouldRead = false;
-            while (!shouldRead) {
-                    // the write call will block until the requested amount of bytes
-                    // is written, however the user might stop the line in the
-                    // middle of writing and then we get told how much was actually written.
-                    // because of that, we might not need to write the entire array when we get here.
-                    int needToWrite = count * 2 - bytesWritten;
-                    int actualWrit = line.write(buf, bytesWritten, needToWrite);
-                    //line.write( buf, 0, count * 2 );
-
-                    // if the total written is not equal to how much we needed to write
-                    // then we need to remember where we were so that we don't read more 
-                    // until we finished writing our entire rawBytes array.
-                    if ( actualWrit != needToWrite )
-                    {
-                      shouldRead = false;
-                      bytesWritten += actualWrit;
-                    }
-                    else
-                    {
-                      // if it all got written, we should continue reading
-                      // and we reset our bytesWritten value.
-                      shouldRead = true; 
-                      bytesWritten = 0;
-                    }
-            }
-			idle();
+			ring = new SampleRing( size ); // only output thread may clear old one
+			ringSize = size;
 		}
+		gen_      = gen;
+		flushRing = ring;
+		flushPos  = ring.writeCount();
+		flushGen  = gen; // publishes the above
+		LockSupport.unpark( thread );
+	}
+	
+	// Fill level that emulation thread stops at
+	int targetFill()
+	{
+		int target = ring.capacity();
+		if ( lowLatency_ )
+			target = Math.min( target, Math.max( msecToSamples( lowLatencyMsec ), chunkSize ) );
+		return target;
+	}
+	
+	// Emulation thread: runs commands and keeps ring filled to target
+	void produce()
+	{
+		final short [] chunk = new short [chunkSize];
+		while ( true )
+		{
+			for ( Runnable r; (r = commands.poll()) != null; )
+			{
+				try
+				{
+					r.run();
+				}
+				catch ( Throwable e )
+				{
+					error( e.toString() );
+				}
+			}
+			
+			if ( !playing_ )
+			{
+				LockSupport.park();
+				continue;
+			}
+			
+			if ( gen_ == endedGen )
+			{
+				// next track can only start once output of previous one has
+				// finished, since line must be reopened at new sample rate
+				if ( next != null && doneGen == gen_ )
+				{
+					int gen = (nextGen > gen_ ? nextGen : requestGen.incrementAndGet());
+					startNext();
+					if ( nextRate != sampleRate )
+						setFormat( nextRate );
+					flush( gen );
+				}
+				else
+				{
+					LockSupport.park();
+				}
+				continue;
+			}
+			
+			if ( current.trackEnded() )
+			{
+				if ( next != null && nextRate == sampleRate )
+				{
+					startNext(); // samples continue in same generation, without a gap
+					continue;
+				}
+				
+				if ( next != null )
+					nextGen = requestGen.incrementAndGet(); // so isPlaying() stays true
+				endedGen = gen_; // all of track's samples are now in ring
+				LockSupport.unpark( thread );
+				continue;
+			}
+			
+			if ( ring.available() + chunkSize > targetFill() )
+			{
+				LockSupport.parkNanos( idleNanos );
+				continue;
+			}
+			
+			int count = chunkSize;
+			int msec = crossfadeMsec;
+			int overlap = msecToSamples( msec );
+			if ( next != null && nextRate == sampleRate && overlap > 0 )
+			{
+				// end chunk exactly where crossfade begins
+				int remain = current.fadeRemaining() - overlap;
+				if ( remain <= 0 )
+				{
+					playCrossfade( chunk, msec );
+					continue;
+				}
+				if ( count > remain )
+					count = remain;
+			}
+			
+			count = current.play( chunk, count );
+			ring.write( chunk, 0, count ); // always fits, since only this thread adds
+		}
+	}
+	
+	// Mixes chunk of current track with next track fading in over msec
+	void playCrossfade( short [] out, int msec )
+	{
+		if ( !nextFading )
+		{
+			// if current track ends before fade-in is complete, next finishes it alone
+			next.setFadeIn( msec, FadeCurve.linear );
+			nextFading = true;
+		}
+		int count = current.play( out, chunkSize );
+		next.play( mix, count );
 		
-		playing_ = false;
-		line.stop();
+		for ( int i = 0; i < count; i++ )
+		{
+			int s = out [i] + mix [i];
+			if ( (short) s != s ) s = (s >> 24) ^ 0x7FFF; // 16-bit clamp
+			out [i] = (short) s;
+		}
+		ring.write( out, 0, count );
 	}
-
-	private void writeBytes()
+	
+	// Switches to queued track. Emulation thread only.
+	void startNext()
 	{
+		current    = next;
+		emu        = next;
+		track_     = next.currentTrack();
+		clearNext();
+		nextStarted();
+	}
+	
+	void clearNext()
+	{
+		next       = null;
+		nextQueued = false;
+		nextFading = false;
+	}
+	
+	// Output thread
+	AudioFormat lineFormat;
+	boolean lineLowLatency;
+	boolean lineStarted;
+	
+	void applyVolume()
+	{
+		volumeChanged = false;
+		FloatControl mg = (FloatControl) line.getControl( FloatControl.Type.MASTER_GAIN );
+		if ( mg != null )
+			mg.setValue( (float) (Math.log( volume_ ) / Math.log( 10.0 ) * 20.0) );
+	}
+	
+	void closeLine()
+	{
+		closeLine = false;
+		if ( line != null )
+		{
+			line.close();
+			line = null;
+			lineStarted = false;
+		}
+	}
+	
+	// Output thread: moves samples from ring to line, and does all opening,
+	// starting and stopping of line
+	public void run()
+	{
+		final short [] in = new short [chunkSize];
+		final byte [] buf = new byte [chunkSize * 2];
+		SampleRing ring = null;
+		int gen = 0;
+		boolean starved = true;
+		while ( true )
+		{
+			if ( closeLine || (line != null &&
+					(lineFormat != audioFormat || lineLowLatency != lowLatency_)) )
+				closeLine();
+			
+			if ( flushGen != gen )
+			{
+				gen  = flushGen;
+				ring = flushRing;
+				ring.discardTo( flushPos );
+				if ( line != null )
+					line.flush();
+				starved = true; // ring is expected to be empty at first
+			}
+			
+			if ( !playing_ || gen == doneGen )
+			{
+				if ( lineStarted )
+				{
+					line.stop();
+					lineStarted = false;
+				}
+				LockSupport.park();
+				continue;
+			}
+			
+			if ( line == null )
+			{
+				lineFormat     = audioFormat;
+				lineLowLatency = lowLatency_;
+				line = getSourceDataLine(lineFormat, lineLowLatency ? 512 : 8192/*1024*/);//(SourceDataLine) AudioSystem.getLine( lineInfo );
+				//line.open( audioFormat );
+				if ( line == null )
+				{
+					playing_ = false;
+					continue;
+				}
+				applyVolume();
+			}
+			if ( volumeChanged )
+				applyVolume();
+			if ( !lineStarted )
+			{
+				line.start();
+				lineStarted = true;
+			}
+			
+			boolean ended = (endedGen == gen); // must be read before ring
+			int count = ring.read( in, 0, (lineLowLatency ? 512 : chunkSize) );
+			if ( count == 0 )
+			{
+				if ( ended )
+				{
+					line.drain();
+					doneGen = gen;
+					LockSupport.unpark( producer ); // may be waiting to start next track
+					continue;
+				}
+				
+				if ( !starved )
+				{
+					starved = true;
+					underruns++;
+					if ( Metrics.enabled )
+						Metrics.record( Metrics.underruns, 1 );
+				}
+				LockSupport.parkNanos( idleNanos / 4 );
+				continue;
+			}
+			starved = false;
+			
+			// line takes big-endian bytes
+			for ( int i = 0, pos = 0; i < count; i++, pos += 2 )
+			{
+				int s = in [i];
+				buf [pos    ] = (byte) (s >> 8);
+				buf [pos + 1] = (byte) s;
+			}
+			
+			// the write call will block until the requested amount of bytes
+			// is written, however the user might stop the line in the
+			// middle of writing and then we get told how much was actually written.
+			int bytesWritten = 0;
+			while ( bytesWritten < count * 2 && playing_ && flushGen == gen )
+				bytesWritten += line.write( buf, bytesWritten, count * 2 - bytesWritten );
+			if ( Metrics.enabled )
+				Metrics.record( Metrics.lineBytes, bytesWritten );
+			
+			idle();
+		}
 	}
 }
 
@@ -307,8 +698,6 @@ class VGMPlayer extends EmuPlayer
 		
 		if ( !loadedPath.equals( path ) )
 		{
-			byte [] data = readFileFromPath( path );
-			
 			String name = path.toUpperCase();
 			if ( name.endsWith( ".ZIP" ) )
 				name = path.toUpperCase();
@@ -321,7 +710,7 @@ class VGMPlayer extends EmuPlayer
                  throw new Exception("VGMPlayer.loadFileFromPath : shit be fucked, yo");
 				//return; // TODO: throw exception?
 			int actualSampleRate = emu.setSampleRate( sampleRate );
-			emu.loadFile( data );
+			loadFromPath( emu, path );
 			
 			// now that new emulator is ready, replace old one
 			setEmu( emu, actualSampleRate );
@@ -329,6 +718,115 @@ class VGMPlayer extends EmuPlayer
 		}
     }
 	
+	// Enables playing VGM files from a small window as they're read, rather
+	// than loading them whole. Applies to files loaded from paths afterwards.
+	public void setStreaming( boolean streaming ) { streamVgm = streaming; }
+	
+	// Loads file at path and starts track on a background thread while current
+	// track keeps playing, then queues it to play once current track ends,
+	// without a gap. After time seconds, the queued track starts fading; if
+	// time is negative, it doesn't fade. Replaces any track already queued.
+	// A preload still waiting to start when another is requested is dropped,
+	// and one already loading is discarded once it finishes.
+	public synchronized void queueFileFromPath( final String path, final int track, final int time )
+	{
+		final int serial = nextSerial.incrementAndGet();
+		if ( preload != null )
+			preload.cancel( false );
+		
+		if ( preloader == null )
+		{
+			preloader = Executors.newSingleThreadExecutor( new ThreadFactory() {
+				public Thread newThread( Runnable r )
+				{
+					Thread t = new Thread( r, "VGMPlayer preload" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+		}
+		
+		preload = preloader.submit( new Runnable() {
+			public void run()
+			{
+				try
+				{
+					MusicEmu emu = openFromPath( path );
+					if ( serial != nextSerial.get() )
+						return; // superseded while loading
+					emu.startTrack( track );
+					if ( time >= 0 )
+						emu.setFade( time, 6, fadeShape );
+					
+					queuedEmu  = emu;
+					queuedPath = path;
+					queueEmu( emu, emu.sampleRate(), serial );
+				}
+				catch ( Throwable e )
+				{
+					error( e.toString() );
+				}
+			}
+		} );
+	}
+	
+	// Creates new emulator and loads file at path into it, without affecting
+	// playback. Used for preloading, and for streams to add to a StreamMixer.
+	public MusicEmu openFromPath( String path ) throws Exception
+	{
+		MusicEmu emu = createEmu( path.toUpperCase() );
+		if ( emu == null )
+			throw new Exception( "Couldn't load " + path );
+		emu.setSampleRate( sampleRate );
+		loadFromPath( emu, path );
+		return emu;
+	}
+	
+	// Loads file at path into emulator, or streams it if it's a VGM and
+	// streaming is enabled
+	void loadFromPath( MusicEmu emu, final String path ) throws Exception
+	{
+		if ( streamVgm && emu instanceof VgmEmu )
+		{
+			((VgmEmu) emu).loadStream( new VgmStream.Source() {
+				public InputStream open() throws IOException
+				{
+					InputStream in = app.createInput( path );
+					if ( in == null )
+						throw new FileNotFoundException( path );
+					if ( path.toUpperCase().endsWith( ".VGZ" ) )
+						in = new java.util.zip.GZIPInputStream( in );
+					return in;
+				}
+			} );
+			return;
+		}
+		
+		byte [] data = readFileFromPath( path );
+		if ( data == null )
+			throw new Exception( "Couldn't load " + path );
+		emu.loadFile( data );
+	}
+	
+	// Stops playback and plays all streams of mixer, until stop() or another
+	// file is loaded
+	public void playMixer( StreamMixer mixer ) throws Exception
+	{
+		setEmu( mixer, mixer.sampleRate() );
+		loadedUrl  = "";
+		loadedPath = "";
+		startTrack( 0 );
+	}
+	
+	protected void nextStarted()
+	{
+		if ( emu == queuedEmu )
+		{
+			loadedUrl  = "";
+			loadedPath = queuedPath;
+		}
+	}
+	
 	// Stops and closes current file and unloads things from memory
 	void closeFile() throws Exception
 	{
@@ -342,8 +840,16 @@ class VGMPlayer extends EmuPlayer
 	
 // private
 	
-	String loadedUrl  = ""; // URL and path of file loaded into emulator
-	String loadedPath = "";
+	volatile String loadedUrl  = ""; // URL and path of file loaded into emulator
+	volatile String loadedPath = "";
+	
+	volatile boolean streamVgm;
+	
+	volatile MusicEmu queuedEmu; // most recently preloaded, and its path
+	volatile String queuedPath;
+	
+	ExecutorService preloader; // runs queueFileFromPath() loads, one at a time
+	Future<?> preload;         // most recently requested load
 	
 	String archiveUrl = ""; // URL of (ZIP) file cached in archiveData
 	byte [] archiveData;
@@ -351,19 +857,7 @@ class VGMPlayer extends EmuPlayer
 	// Creates appropriate emulator for given filename
 	MusicEmu createEmu( String name )
 	{
-		if ( name.endsWith( ".VGM" ) || name.endsWith( ".VGZ" ) )
-			return new VgmEmu();
-		
-		if ( name.endsWith( ".GBS" ) )
-			return new GbsEmu();
-		
-		if ( name.endsWith( ".NSF" ) )
-			return new NsfEmu();
-		
-		if ( name.endsWith( ".SPC" ) )
-			return new SpcEmu();
-		
-		return null;
+		return MusicEmu.createEmu( name );
 	}
 			
 	// Loads given URL and file within archive, and caches archive for future access
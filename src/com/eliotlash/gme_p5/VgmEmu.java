@@ -21,29 +21,83 @@ final class VgmEmu extends ClassicEmu
 		if ( !isHeader( data, "Vgm " ) )
 			error( "Not a VGM file" );
 		
-		// TODO: use custom noise taps if present
-		
-		// Data and loop
+		// Data is used in place; running off its end is treated as cmd_end,
+		// so there's no need to append one.
+		closeStream();
 		this.data = data;
-		loopBegin = getLE32( data, 28 ) + 28;
-		if ( loopBegin <= 28 )
+		dataBase  = 0;
+		dataEnd   = data.length;
+		refillAt  = Integer.MAX_VALUE;
+		fileSize  = data.length;
+		pcm       = data;
+		pcmBase   = 0;
+		return loadHeader( data );
+	}
+	
+	// Plays VGM file from source through a small window rather than loading
+	// it whole. Only PCM data blocks are held in memory. File is read once
+	// now to find them, and again from the beginning each time track loops.
+	public void loadStream( final VgmStream.Source source ) throws java.io.IOException
+	{
+		final long start = Metrics.startTiming();
+		
+		// checksum is taken while scanning, so that it matches loadFile()'s
+		final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		VgmStream scan = new VgmStream( new VgmStream.Source() {
+			public java.io.InputStream open() throws java.io.IOException
+			{
+				return new java.util.zip.CheckedInputStream( source.open(), crc );
+			}
+		}, windowSize );
+		
+		try
 		{
-			loopBegin = data.length;
+			scan.moveTo( 0 );
+			if ( scan.end < 0x40 || !isHeader( scan.buf, "Vgm " ) )
+				error( "Not a VGM file" );
+			byte [] header = java.util.Arrays.copyOf( scan.buf, 0x40 );
+			
+			closeStream();
+			trackEnded_   = true;
+			currentTrack_ = 0;
+			currentTime_  = 0;
+			findBlocks( scan, getLE32( header, 0x2C ) != 0 );
+			fileCrc = (int) crc.getValue();
+			
+			stream   = new VgmStream( source, windowSize );
+			pcm      = noPcm;
+			pcmBase  = 0;
+			data     = stream.buf;
+			dataBase = 0;
+			dataEnd  = 0;
+			trackCount_ = loadHeader( header );
 		}
-		else if ( data [data.length - 1] != cmd_end )
+		finally
 		{
-			data = DataReader.resize( data, data.length + 1 );
-			data [data.length - 1] = cmd_end;
+			scan.close();
 		}
+		Metrics.endTiming( Metrics.loadNanos, start );
+	}
+	
+	int loadHeader( byte [] header )
+	{
+		// TODO: use custom noise taps if present
+		
+		// Loop
+		loopBegin = getLE32( header, 28 ) + 28;
+		if ( loopBegin <= 28 )
+			loopBegin = fileSize;
+		totalSamples = getLE32( header, 0x18 );
+		loopSamples  = (loopBegin < fileSize ? getLE32( header, 0x20 ) : 0);
 		
 		// PSG clock rate
-		int clockRate = getLE32( data, 0x0C );
+		int clockRate = getLE32( header, 0x0C );
 		if ( clockRate == 0 )
 			clockRate = 3579545;
 		psgFactor = (int) ((float) psgTimeUnit / vgmRate * clockRate + 0.5);
 		
 		// FM clock rate
-		fm_clock_rate = getLE32( data, 0x2C );
+		fm_clock_rate = getLE32( header, 0x2C );
 		fm = null;
 		if ( fm_clock_rate != 0 )
 		{
@@ -71,13 +125,29 @@ final class VgmEmu extends ClassicEmu
 	final SmsApu apu = new SmsApu();
 	YM2612      fm;
 	int         fm_clock_rate;
-	int			pos;
-	byte []		data;
+	int			pos;        // offset of next command in data
+	byte []		data;       // whole file, or window into stream
+	int         dataBase;   // file offset of data [0]
+	int         dataEnd;    // end of valid bytes in data
+	int         refillAt;   // pos at which window must be moved forward
+	int         fileSize;
+	VgmStream   stream;     // null if whole file is in data
+	byte []     pcm;        // PCM data, which is data itself unless streaming
+	int         pcmBase;    // file offset of pcm [0]
+	int []      blockOffsets; // file offsets of streamed PCM data blocks
+	byte [] []  blocks;
 	int			delay;
 	int			psgFactor;
 	int			loopBegin;
+	int         totalSamples; // from header, including looped part once
+	int         loopSamples;  // from header, 0 if track doesn't loop
+	int         loopCount;  // times end has been reached and track looped
+	int         loopLimit;  // 0 for no limit
 	final int [] fm_buf_lr = new int [48000 / 10 * 2];
 	int         fm_pos;
+	int []      fm_writes = new int [256]; // queued for this frame, as sample, port << 16 | addr << 8 | data
+	int         fm_write_count;
+	boolean     queueFM = true; // false to update FM before each write, for comparison
 	int         dac_disabled; // -1 if disabled
 	int         pcm_data;
 	int         pcm_pos;
@@ -98,14 +168,199 @@ final class VgmEmu extends ClassicEmu
 	static final int ym2612_dac_port		= 0x2A;
 	static final int pcm_block_type		= 0x00;
 	
+	static final int windowSize = 16 * 1024;
+	static final byte [] noPcm = new byte [0];
+	
+	void closeStream()
+	{
+		if ( stream != null )
+		{
+			try
+			{
+				stream.close();
+			}
+			catch ( java.io.IOException e ) { }
+			stream = null;
+		}
+		blockOffsets = null;
+		blocks       = null;
+	}
+	
+	// Reads through whole file once, keeping PCM data blocks and finding its
+	// size. Must parse commands exactly as runCommands() does.
+	private void findBlocks( VgmStream s, boolean hasFm ) throws java.io.IOException
+	{
+		blockOffsets = new int [0];
+		blocks       = new byte [0] [];
+		int pos = 0x40;
+		s.moveTo( pos );
+		while ( true )
+		{
+			if ( pos - s.base > s.end - 8 && !s.eof )
+				s.moveTo( pos );
+			int i = pos - s.base;
+			if ( i >= s.end )
+				break;
+			
+			int cmd = s.buf [i] & 0xFF;
+			if ( cmd == cmd_end )
+				break;
+			
+			switch ( cmd )
+			{
+			case cmd_gg_stereo:
+			case cmd_psg:
+				pos += 2;
+				break;
+			
+			case cmd_ym2612_port0:
+			case cmd_ym2612_port1:
+				pos += (hasFm ? 3 : 1);
+				break;
+			
+			case cmd_delay:
+				pos += 3;
+				break;
+			
+			case cmd_data_block:
+			{
+				int type = s.buf [i + 2];
+				int size = getLE32( s.buf, i + 3 );
+				pos += 7;
+				if ( size < 0 || size > Integer.MAX_VALUE - pos )
+					error( "Bad VGM data block size" );
+				
+				if ( type == pcm_block_type && size > 0 )
+				{
+					byte [] block = readBlock( s, pos, size );
+					int n = blocks.length;
+					blockOffsets = java.util.Arrays.copyOf( blockOffsets, n + 1 );
+					blocks       = java.util.Arrays.copyOf( blocks, n + 1 );
+					blockOffsets [n] = pos;
+					blocks       [n] = block;
+				}
+				else if ( size > 0 )
+				{
+					// block's last byte must exist
+					s.moveTo( pos + size - 1 );
+					if ( s.end == 0 )
+						error( "VGM data block runs past end of file" );
+				}
+				pos += size;
+				break;
+			}
+			
+			case cmd_pcm_seek:
+				pos += 5;
+				break;
+			
+			default:
+				pos += ((cmd & 0xF0) == 0x50 ? 3 : 1);
+				break;
+			}
+		}
+		
+		// rest of file, for size and checksum
+		while ( !s.eof )
+			s.moveTo( s.base + s.end );
+		fileSize = s.base + s.end;
+	}
+	
+	// Reads data block of size bytes at file offset pos. Grows block only as
+	// data arrives, so that a bad size can't allocate more than file holds.
+	private byte [] readBlock( VgmStream s, int pos, int size ) throws java.io.IOException
+	{
+		byte [] block = new byte [Math.min( size, windowSize )];
+		int total = 0;
+		while ( total < size )
+		{
+			if ( total == block.length )
+				block = java.util.Arrays.copyOf( block, (int) Math.min( block.length * 2L, size ) );
+			
+			int n = s.read( pos + total, block, total, block.length - total );
+			if ( n == 0 )
+				error( "VGM data block runs past end of file" );
+			total += n;
+		}
+		return block;
+	}
+	
+	// Moves to file offset and returns its position in data
+	private int seekTo( int offset )
+	{
+		if ( stream == null )
+			return offset;
+		
+		try
+		{
+			stream.moveTo( offset );
+		}
+		catch ( java.io.IOException e )
+		{
+			logError();
+			try
+			{
+				stream.close();
+			}
+			catch ( java.io.IOException e2 ) { }
+		}
+		data     = stream.buf;
+		dataBase = stream.base;
+		dataEnd  = stream.end;
+		refillAt = (stream.eof ? Integer.MAX_VALUE : dataEnd - 8); // longest command header is 7 bytes
+		return 0;
+	}
+	
+	// Sets file offset of current PCM data block
+	private void setPcm( int offset )
+	{
+		pcm_data = offset;
+		if ( stream != null )
+		{
+			pcm     = noPcm;
+			pcmBase = offset;
+			for ( int i = 0; i < blocks.length; i++ )
+				if ( blockOffsets [i] == offset )
+					pcm = blocks [i];
+		}
+	}
+	
+	// Next byte of PCM data, or center value if past end of PCM data
+	private int nextPcm()
+	{
+		int i = pcm_pos++ - pcmBase;
+		return (i >= 0 && i < pcm.length ? pcm [i] & 0xFF : 0x80);
+	}
+	
+	// Number of times track has reached its end and gone back to its loop point
+	public int loopCount() { return loopCount; }
+	
+	// Ends track when it reaches its end for the loops'th time, so that its
+	// looped part plays exactly that many times, or loops forever if 0, the
+	// default. Kept across tracks and files.
+	public void setLoopLimit( int loops ) { loopLimit = Math.max( 0, loops ); }
+	
+	// Milliseconds from beginning of track to end of its looped part played
+	// 'loops' times (at least once), according to file header. If track
+	// doesn't loop, its length.
+	public int length( int loops )
+	{
+		long samples = (totalSamples & 0xFFFFFFFFL) + (loopSamples & 0xFFFFFFFFL) * Math.max( 0, loops - 1 );
+		return (int) Math.min( samples * 1000 / vgmRate, Integer.MAX_VALUE );
+	}
+	
+	// True if looping again would reach loop limit
+	private boolean atLoopLimit() { return loopLimit > 0 && loopCount + 1 >= loopLimit; }
+	
 	public void startTrack( int track )
 	{
 		super.startTrack( track );
 		
-		pos      = 0x40;
+		pos      = seekTo( 0x40 );
+		loopCount = 0;
 		delay    = 0;
-		pcm_data = pos;
-		pcm_pos  = pos;
+		setPcm( 0x40 );
+		pcm_pos  = 0x40;
 		dac_amp  = -1;
 		
 		apu.reset();
@@ -113,6 +368,45 @@ final class VgmEmu extends ClassicEmu
 			fm.reset();
 	}
 	
+	protected void saveState_( StateWriter out )
+	{
+		super.saveState_( out );
+		out.putInt( dataBase + pos );
+		out.putInt( delay );
+		out.putInt( pcm_data );
+		out.putInt( pcm_pos );
+		out.putInt( dac_amp );
+		out.putInt( dac_disabled );
+		apu.saveState( out );
+		if ( fm != null )
+		{
+			// FM samples not yet mixed, one for each sample left in buf
+			out.putInt( fm_pos );
+			out.putInts( fm_buf_lr, fm_pos, buf.samplesAvail() );
+			fm.saveState( out );
+		}
+		out.putInt( loopCount );
+	}
+	
+	protected void loadState_( StateReader in )
+	{
+		super.loadState_( in );
+		pos          = seekTo( in.getInt( 0, fileSize ) );
+		delay        = in.getInt();
+		setPcm( in.getInt() );
+		pcm_pos      = in.getInt();
+		dac_amp      = in.getInt( -1, 0xFF );
+		dac_disabled = in.getInt( -1, 0 );
+		apu.loadState( in );
+		if ( fm != null )
+		{
+			fm_pos = in.getInt( 0, fm_buf_lr.length - buf.samplesAvail() );
+			in.getInts( fm_buf_lr, fm_pos, buf.samplesAvail() );
+			fm.loadState( in );
+		}
+		loopCount    = in.getInt( 0, Integer.MAX_VALUE );
+	}
+	
 	private int toPSGTime( int vgmTime )
 	{
 		return (vgmTime * psgFactor + psgTimeUnit / 2) >> psgTimeBits;
@@ -123,6 +417,27 @@ final class VgmEmu extends ClassicEmu
 		return countSamples( toPSGTime( vgmTime ) );
 	}
 	
+	// Queues FM write, to be made when frame is rendered, or makes it now
+	// unless queueFM is set
+	private void writeFM( int vgmTime, int port, int addr, int data )
+	{
+		if ( !queueFM )
+		{
+			runFM( vgmTime );
+			if ( port == 0 )
+				fm.write0( addr, data );
+			else
+				fm.write1( addr, data );
+			return;
+		}
+		
+		if ( fm_write_count >= fm_writes.length )
+			fm_writes = java.util.Arrays.copyOf( fm_writes, fm_writes.length * 2 );
+		fm_writes [fm_write_count++] = toFMTime( vgmTime );
+		fm_writes [fm_write_count++] = port << 16 | addr << 8 | data;
+	}
+	
+	// Renders FM up to time, for writes that aren't queued
 	private void runFM( int vgmTime )
 	{
 		int count = toFMTime( vgmTime ) - fm_pos;
@@ -155,16 +470,51 @@ final class VgmEmu extends ClassicEmu
 		}
 		fm_pos = 0;
 		
+		runCommands( duration );
+		
+		if ( fm != null )
+		{
+			if ( queueFM )
+				fm.update( fm_buf_lr, toFMTime( duration ), fm_writes, fm_write_count / 2 );
+			else
+				runFM( duration );
+			fm_write_count = 0;
+		}
+		
+		int endTime = toPSGTime( duration );
+		apu.endFrame( endTime );
+		
+		fm_pos = 0;
+		
+		return endTime;
+	}
+	
+	// Interprets commands for one frame
+	private void runCommands( final int duration )
+	{
 		int time = delay;
+		int loopedAt = -1; // time of last loop in this frame; frame only ends after time advances
 		while ( time < duration )
 		{
+			if ( pos >= refillAt )
+				pos = seekTo( dataBase + pos );
 			int cmd = cmd_end;
-			if ( pos < data.length )
+			if ( pos < dataEnd )
 				cmd = data [pos++] & 0xFF;
 			switch ( cmd )
 			{
 			case cmd_end:
-				pos = loopBegin;
+				// loop taking no time would play forever without advancing
+				if ( loopBegin >= fileSize || trackEnded() || atLoopLimit() || time == loopedAt )
+				{
+					// no loop, so stop here rather than looping on end forever
+					pos  = dataEnd;
+					time = duration;
+					break;
+				}
+				pos = seekTo( loopBegin );
+				loopCount++;
+				loopedAt = time;
 				break;
 			
 			case cmd_delay_735:
@@ -199,8 +549,7 @@ final class VgmEmu extends ClassicEmu
 							dac_disabled = (val >> 7 & 1) - 1;
 							dac_amp |= dac_disabled;
 						}
-						runFM( time );
-						fm.write0( port, val );
+						writeFM( time, 0, port, val );
 					}
 				}
 				break;
@@ -208,9 +557,8 @@ final class VgmEmu extends ClassicEmu
 			case cmd_ym2612_port1:
 				if ( fm != null )
 				{
-					runFM( time );
 					int port = data [pos++] & 0xFF;
-					fm.write1( port, data [pos++] & 0xFF );
+					writeFM( time, 1, port, data [pos++] & 0xFF );
 				}
 				break;
 			
@@ -224,8 +572,15 @@ final class VgmEmu extends ClassicEmu
 					logError();
 				int type = data [pos++];
 				long size = getLE32( data, pos ); pos += 4;
+				if ( size < 0 || (stream == null && size > dataEnd - pos) )
+				{
+					// runs backward or past end of data, so treat as end
+					logError();
+					pos = dataEnd;
+					break;
+				}
 				if ( type == pcm_block_type )
-					pcm_data = pos;
+					setPcm( dataBase + pos );
 				pos += size;
 				break;
 			
@@ -238,7 +593,7 @@ final class VgmEmu extends ClassicEmu
 				switch ( cmd & 0xF0 )
 				{
 				case cmd_pcm_delay:
-					write_pcm( time, data [pcm_pos++] & 0xFF );
+					write_pcm( time, nextPcm() );
 					time += cmd & 0x0F;
 					break;
 				
@@ -256,44 +611,32 @@ final class VgmEmu extends ClassicEmu
 				}
 			}
 		}
-		
-		if ( fm != null )
-			runFM( duration );
-		
-		int endTime = toPSGTime( duration );
 		delay = time - duration;
-		apu.endFrame( endTime );
-		if ( pos >= data.length )
+		if ( pos >= dataEnd && (stream == null || stream.eof) )
 		{
 			setTrackEnded();
-			if ( pos > data.length )
+			if ( pos > dataEnd )
 			{
-				pos = data.length;
+				pos = dataEnd;
 				logError(); // went past end
 			}
 		}
-		
-		fm_pos = 0;
-		
-		return endTime;
 	}
 	
-	protected void mixSamples( byte [] out, int out_off, int count )
+	protected void mixSamples( short [] out, int out_off, int count )
 	{
 		if ( fm == null )
 			return;
 		
-		out_off *= 2;
+		final int [] fm_buf_lr = this.fm_buf_lr;
 		int in_off = fm_pos;
 		
 		while ( --count >= 0 )
 		{
-			int s = (out [out_off] << 8) + (out [out_off + 1] & 0xFF);
-			s = (s >> 2) + fm_buf_lr [in_off]; in_off++;
+			int s = (out [out_off] >> 2) + fm_buf_lr [in_off++];
 			if ( (short) s != s )
 				s = (s >> 31) ^ 0x7FFF;
-			out [out_off] = (byte) (s >> 8); out_off++;
-			out [out_off] = (byte)  s      ; out_off++;
+			out [out_off++] = (short) s;
 		}
 		
 		fm_pos = in_off;
@@ -0,0 +1,137 @@
+package com.eliotlash.gme_p5;
+
+// Sliding window over a VGM file, so it can be played without holding all of it
+
+/* The file is read from a Source, which opens it from the beginning each time
+it's called, decompressing it as it goes if needed. Only a small window of the
+data is held at once. Moving forward reads or skips data; moving backward, as
+when a track loops, reopens the source and skips to the new position, which
+for a compressed file means decoding it again up to there. */
+
+import java.io.*;
+
+final class VgmStream
+{
+	// Supplies file data from its beginning each time open() is called
+	interface Source
+	{
+		InputStream open() throws IOException;
+	}
+	
+	// Source for file at path, decompressed if name ends in .GZ or .VGZ
+	static Source fileSource( final String path )
+	{
+		final boolean gzip = path.toUpperCase().endsWith( "GZ" );
+		return new Source() {
+			public InputStream open() throws IOException
+			{
+				InputStream in = new FileInputStream( path );
+				return gzip ? new java.util.zip.GZIPInputStream( in, 8192 ) : new BufferedInputStream( in, 8192 );
+			}
+		};
+	}
+	
+	public VgmStream( Source source, int windowSize )
+	{
+		this.source = source;
+		this.buf    = new byte [windowSize];
+	}
+	
+	// Current window. buf [0] is at file offset base, and buf [end - 1] is
+	// last valid byte. If eof is true, there is no data beyond window.
+	byte [] buf;
+	int base;
+	int end;
+	boolean eof = true;
+	
+	// Moves window so that it begins at file offset, reading, skipping or
+	// reopening source as needed. Window ends early only at end of file.
+	public void moveTo( int offset ) throws IOException
+	{
+		if ( in == null || offset < base )
+			restart();
+		
+		int shift = offset - base;
+		if ( shift <= end )
+		{
+			System.arraycopy( buf, shift, buf, 0, end - shift );
+			end -= shift;
+		}
+		else
+		{
+			skip( shift - end );
+			end = 0;
+		}
+		base = offset;
+		fill();
+	}
+	
+	// Reads count bytes starting at file offset into out [pos], leaving window
+	// just after them. Returns number read, which is less only at end of file.
+	public int read( int offset, byte [] out, int pos, int count ) throws IOException
+	{
+		moveTo( offset );
+		int total = 0;
+		while ( total < count && end > 0 )
+		{
+			int n = Math.min( count - total, end );
+			System.arraycopy( buf, 0, out, pos + total, n );
+			total += n;
+			moveTo( base + n );
+		}
+		return total;
+	}
+	
+	public void close() throws IOException
+	{
+		if ( in != null )
+		{
+			in.close();
+			in = null;
+		}
+		base = 0;
+		end  = 0;
+		eof  = true;
+	}
+
+// private
+	
+	final Source source;
+	InputStream in;
+	
+	void restart() throws IOException
+	{
+		close();
+		in  = source.open();
+		eof = false;
+	}
+	
+	void skip( int count ) throws IOException
+	{
+		while ( count > 0 && !eof )
+		{
+			long n = in.skip( count );
+			if ( n <= 0 )
+			{
+				// skip() may return 0 before end, so confirm with read()
+				if ( in.read() < 0 )
+					eof = true;
+				else
+					n = 1;
+			}
+			count -= n;
+		}
+	}
+	
+	void fill() throws IOException
+	{
+		while ( end < buf.length && !eof )
+		{
+			int n = in.read( buf, end, buf.length - end );
+			if ( n < 0 )
+				eof = true;
+			else
+				end += n;
+		}
+	}
+}
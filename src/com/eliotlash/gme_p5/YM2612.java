@@ -178,23 +178,42 @@ public final class YM2612
 	  LFO_FMS_BASE * 12, LFO_FMS_BASE * 24
 	};	  
 	
-	// Variables
-	private final int[] SIN_TAB         = new int[SINLEN];
-	private final int[]	TL_TAB	        = new int[TLLEN*2];
-	private final int[]	ENV_TAB         = new int[2*ENVLEN+8]; // uint
-	private final int[]	DECAY_TO_ATTACK = new int[ENVLEN];	// uint
-	private final int[]	FINC_TAB        = new int[2048];	// uint
+	// Tables that don't depend on clock or rate, built once and shared by all
+	// instances. Never written after static initialization.
+	private static final int[]	SIN_TAB         = new int[SINLEN];
+	private static final int[]	TL_TAB	        = new int[TLLEN*2];
+	private static final int[]	ENV_TAB         = new int[2*ENVLEN+8]; // uint
+	private static final int[]	DECAY_TO_ATTACK = new int[ENVLEN];	// uint
+	private static final int[]	SL_TAB          = new int[16];		 // uint
+	private static final int[]	LFO_ENV_TAB     = new int[LFOLEN];
+	private static final int[]	LFO_FREQ_TAB    = new int[LFOLEN];
+	
 	static final int AR_NULL_RATE = 128;
-	private final int[]	AR_TAB          = new int[AR_NULL_RATE + NULL_RATE_SIZE];	// uint
 	static final int DR_NULL_RATE = 96;
-	private final int[]	DR_TAB          = new int[DR_NULL_RATE + NULL_RATE_SIZE];	// uint
-	private final int[][] DT_TAB        = new int[8][32];	// uint
-	private final int[]	SL_TAB          = new int[16];		 // uint
-	private final int[]	LFO_ENV_TAB     = new int[LFOLEN];
-	private final int[]	LFO_FREQ_TAB    = new int[LFOLEN];
+	
+	// Tables that depend on clock and rate, shared by instances using same
+	// ones (see rateTables()). Never written after construction.
+	private static final class RateTables {
+		final int[]	FINC_TAB        = new int[2048];	// uint
+		final int[]	AR_TAB          = new int[AR_NULL_RATE + NULL_RATE_SIZE];	// uint
+		final int[]	DR_TAB          = new int[DR_NULL_RATE + NULL_RATE_SIZE];	// uint
+		final int[][] DT_TAB        = new int[8][32];	// uint
+		final int[]	LFO_INC_TAB     = new int[8];
+		
+		RateTables(int Clock, int Rate){ initRateTables(this, Clock, Rate); }
+	};
+	
+	// Variables
+	private int[]	FINC_TAB;
+	private int[]	AR_TAB;
+	private int[]	DR_TAB;
+	private int[][] DT_TAB;
+	private int[]	LFO_INC_TAB;
 	private final int[]	LFO_ENV_UP      = new int[UPD_SIZE];
 	private final int[]	LFO_FREQ_UP     = new int[UPD_SIZE];
-	private final int[]	LFO_INC_TAB     = new int[8];
+	private final boolean[] WRITE_UP    = new boolean[UPD_SIZE + 1];	// samples queued writes fall on
+	private final int[]	CHANNEL_POS     = new int[6];	// sample each channel has been rendered to
+	private int LFO_POS;	// sample LFO_ENV_UP/LFO_FREQ_UP are filled to
 	private int in0, in1, in2, in3;
 	private int en0, en1, en2, en3;
 	private int int_cnt;
@@ -246,9 +265,6 @@ public final class YM2612
 
 	public final int init(int Clock, int Rate)
 	{
-		int i, j;
-		double x;
-
 		if((Rate == 0) || (Clock == 0)) return 1;
 
 		YM2612_Clock = Clock;
@@ -259,7 +275,45 @@ public final class YM2612
 		
 		YM2612_Inter_Step = 0x4000;
 		YM2612_Inter_Cnt = 0;
-  
+		
+		RateTables t = rateTables(Clock, Rate);
+		FINC_TAB    = t.FINC_TAB;
+		AR_TAB      = t.AR_TAB;
+		DR_TAB      = t.DR_TAB;
+		DT_TAB      = t.DT_TAB;
+		LFO_INC_TAB = t.LFO_INC_TAB;
+		
+		reset();
+		return 0;
+	}	 
+	
+	// Rate tables built so far, keyed by clock and rate. Files almost
+	// always use one of a few clocks, so this stays tiny; it's cleared if not.
+	private static final java.util.HashMap<Long, RateTables> rateTablesCache =
+			new java.util.HashMap<Long, RateTables>();
+	
+	private static synchronized RateTables rateTables(int Clock, int Rate)
+	{
+		Long key = Long.valueOf((long) Clock << 32 | (Rate & 0xFFFFFFFFL));
+		RateTables t = rateTablesCache.get(key);
+		if(t == null){
+			if(rateTablesCache.size() >= 16) rateTablesCache.clear();
+			t = new RateTables(Clock, Rate);
+			rateTablesCache.put(key, t);
+		}
+		return t;
+	}
+	
+	static {
+		initTables();
+	}
+	
+	// Builds tables that don't depend on clock or rate
+	private static void initTables()
+	{
+		int i, j;
+		double x;
+
 		// TL Table :
 		// [0	  -	 4095] = +output  [4095	 - ...] = +output overflow (fill with 0)
 		// [12288 - 16383] = -output  [16384 - ...] = -output overflow (fill with 0)
@@ -342,11 +396,20 @@ public final class YM2612
 		j = ENVLEN - 1;		   // special case : volume off
 		j <<= ENV_LBITS;
 		SL_TAB[15] = j + ENV_DECAY;
+	}
+	
+	// Builds tables that depend on clock and rate
+	private static void initRateTables(RateTables t, int Clock, int Rate)
+	{
+		int i, j;
+		double x;
+		
+		double Frequency = ((double) Clock / (double) Rate) / 144.0;
 
 		//Frequency Step Table
 
 		for(i = 0; i < 2048; i++){
-			x = (double) i * YM2612_Frequency;
+			x = (double) i * Frequency;
 
 			if((SIN_LBITS + SIN_HBITS - (21 - 7)) < 0){
 				x /= (double) (1 << ((21 - 7) - SIN_LBITS - SIN_HBITS));
@@ -354,61 +417,58 @@ public final class YM2612
 				x *= (double) (1 << (SIN_LBITS + SIN_HBITS - (21 - 7)));
 			}
 			x /= 2.0;  // because MUL = value * 2
-			FINC_TAB[i] = (int) x;	// (unsigned int) x;
+			t.FINC_TAB[i] = (int) x;	// (unsigned int) x;
 		}
 
 		// Attack & Decay Rate Table
 
 		for(i = 0; i < 4; i++){
-			AR_TAB[i] = 0;
-			DR_TAB[i] = 0;
+			t.AR_TAB[i] = 0;
+			t.DR_TAB[i] = 0;
 		}
 
 		for(i = 0; i < 60; i++){
-			x = YM2612_Frequency;
+			x = Frequency;
 			x *= 1.0 + ((i & 3) * 0.25);		  // bits 0-1 : x1.00, x1.25, x1.50, x1.75
 			x *= (double) (1 << ((i >> 2)));		// bits 2-5 : shift bits (x2^0 - x2^15)
 			x *= (double) (ENVLEN << ENV_LBITS);	// on ajuste pour le tableau ENV_TAB
 
-			AR_TAB[i + 4] = (int) (x / AR_RATE);   // (unsigned int) (x / AR_RATE);
-			DR_TAB[i + 4] = (int) (x / DR_RATE);   // (unsigned int) (x / DR_RATE);
+			t.AR_TAB[i + 4] = (int) (x / AR_RATE);   // (unsigned int) (x / AR_RATE);
+			t.DR_TAB[i + 4] = (int) (x / DR_RATE);   // (unsigned int) (x / DR_RATE);
 		}
 
 		for(i = 64; i < 96; i++){
-			AR_TAB[i] = AR_TAB[63];
-			DR_TAB[i] = DR_TAB[63];
-			AR_TAB[i - 64+AR_NULL_RATE] = 0;
-			DR_TAB[i - 64+DR_NULL_RATE] = 0;
+			t.AR_TAB[i] = t.AR_TAB[63];
+			t.DR_TAB[i] = t.DR_TAB[63];
+			t.AR_TAB[i - 64+AR_NULL_RATE] = 0;
+			t.DR_TAB[i - 64+DR_NULL_RATE] = 0;
 		}
 
 		// Detune Table
 		for(i = 0; i < 4; i++){
 			for (j = 0; j < 32; j++){
 				if((SIN_LBITS + SIN_HBITS - 21) < 0){
-					x = (double) DT_DEF_TAB[(i << 5) + j] * YM2612_Frequency / (double) (1 << (21 - SIN_LBITS - SIN_HBITS));
+					x = (double) DT_DEF_TAB[(i << 5) + j] * Frequency / (double) (1 << (21 - SIN_LBITS - SIN_HBITS));
 				} else {
-					x = (double) DT_DEF_TAB[(i << 5) + j] * YM2612_Frequency * (double) (1 << (SIN_LBITS + SIN_HBITS - 21));
+					x = (double) DT_DEF_TAB[(i << 5) + j] * Frequency * (double) (1 << (SIN_LBITS + SIN_HBITS - 21));
 				}
-				DT_TAB[i + 0][j] = (int) x;
-				DT_TAB[i + 4][j] = (int) -x;
+				t.DT_TAB[i + 0][j] = (int) x;
+				t.DT_TAB[i + 4][j] = (int) -x;
 			}
 		} 
 
 		// LFO Table
-		j = (int)((YM2612_Rate * YM2612_Inter_Step) / 0x4000);
-
-		LFO_INC_TAB[0] = (int) (3.98 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
-		LFO_INC_TAB[1] = (int) (5.56 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
-		LFO_INC_TAB[2] = (int) (6.02 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
-		LFO_INC_TAB[3] = (int) (6.37 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
-		LFO_INC_TAB[4] = (int) (6.88 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
-		LFO_INC_TAB[5] = (int) (9.63 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
-		LFO_INC_TAB[6] = (int) (48.1 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
-		LFO_INC_TAB[7] = (int) (72.2 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
-		
-		reset();
-		return 0;
-	}	 
+		j = Rate; // Inter_Step is always 0x4000
+
+		t.LFO_INC_TAB[0] = (int) (3.98 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
+		t.LFO_INC_TAB[1] = (int) (5.56 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
+		t.LFO_INC_TAB[2] = (int) (6.02 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
+		t.LFO_INC_TAB[3] = (int) (6.37 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
+		t.LFO_INC_TAB[4] = (int) (6.88 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
+		t.LFO_INC_TAB[5] = (int) (9.63 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
+		t.LFO_INC_TAB[6] = (int) (48.1 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
+		t.LFO_INC_TAB[7] = (int) (72.2 * (double) (1 << (LFO_HBITS + LFO_LBITS)) / j);
+	}
 	
 	public final int reset(){
 		int i, j;
@@ -474,6 +534,140 @@ public final class YM2612
 	}	 
 	
 	
+	// Saves channel, slot, timer and register state. Tables that init() sets
+	// up for the clock and sample rate aren't included.
+	final void saveState(StateWriter out){
+		out.putInt(YM2612_Status);
+		out.putInt(YM2612_LFOcnt);
+		out.putInt(YM2612_LFOinc);
+		out.putInt(YM2612_TimerA);
+		out.putInt(YM2612_TimerAL);
+		out.putInt(YM2612_TimerAcnt);
+		out.putInt(YM2612_TimerB);
+		out.putInt(YM2612_TimerBL);
+		out.putInt(YM2612_TimerBcnt);
+		out.putInt(YM2612_Mode);
+		out.putInt(YM2612_DAC);
+		out.putInt((int) YM2612_Inter_Cnt);
+		out.putInts(YM2612_REG[0]);
+		out.putInts(YM2612_REG[1]);
+		
+		for(int i = 0; i < 6; i++){
+			cChannel CH = YM2612_CHANNEL[i];
+			out.putInts(CH.S0_OUT);
+			out.putInt(CH.Old_OUTd);
+			out.putInt(CH.OUTd);
+			out.putInt(CH.LEFT);
+			out.putInt(CH.RIGHT);
+			out.putInt(CH.ALGO);
+			out.putInt(CH.FB);
+			out.putInt(CH.FMS);
+			out.putInt(CH.AMS);
+			out.putInts(CH.FNUM);
+			out.putInts(CH.FOCT);
+			out.putInts(CH.KC);
+			out.putInt(CH.FFlag);
+			
+			for(int j = 0; j < 4; j++){
+				cSlot SL = CH.SLOT[j];
+				int dt = -1;											// DT is a row of DT_TAB, saved as its index
+				for(int k = 0; k < 8; k++) if(SL.DT == DT_TAB[k]) dt = k;
+				out.putInt(dt);
+				out.putInt(SL.MUL);
+				out.putInt(SL.TL);
+				out.putInt(SL.TLL);
+				out.putInt(SL.SLL);
+				out.putInt(SL.KSR_S);
+				out.putInt(SL.KSR);
+				out.putInt(SL.SEG);
+				out.putInt(SL.AR);
+				out.putInt(SL.DR);
+				out.putInt(SL.SR);
+				out.putInt(SL.RR);
+				out.putInt(SL.Fcnt);
+				out.putInt(SL.Finc);
+				out.putInt(SL.Ecurp);
+				out.putInt(SL.Ecnt);
+				out.putInt(SL.Einc);
+				out.putInt(SL.Ecmp);
+				out.putInt(SL.EincA);
+				out.putInt(SL.EincD);
+				out.putInt(SL.EincS);
+				out.putInt(SL.EincR);
+				out.putInt(SL.INd);
+				out.putInt(SL.ChgEnM);
+				out.putInt(SL.AMS);
+				out.putInt(SL.AMSon);
+			}
+		}
+	}
+	
+	// Restores state saved by saveState(). Must be init()ed with same clock and rate.
+	final void loadState(StateReader in){
+		YM2612_Status = in.getInt();
+		YM2612_LFOcnt = in.getInt();
+		YM2612_LFOinc = in.getInt();
+		YM2612_TimerA = in.getInt();
+		YM2612_TimerAL = in.getInt();
+		YM2612_TimerAcnt = in.getInt();
+		YM2612_TimerB = in.getInt();
+		YM2612_TimerBL = in.getInt();
+		YM2612_TimerBcnt = in.getInt();
+		YM2612_Mode = in.getInt();
+		YM2612_DAC = in.getInt();
+		YM2612_Inter_Cnt = in.getInt() & 0xFFFFFFFFL;
+		in.getIntsInRange(YM2612_REG[0], -1, 0xFF);	// -1 if never written
+		in.getIntsInRange(YM2612_REG[1], -1, 0xFF);
+		
+		for(int i = 0; i < 6; i++){
+			cChannel CH = YM2612_CHANNEL[i];
+			in.getInts(CH.S0_OUT);
+			CH.Old_OUTd = in.getInt();
+			CH.OUTd = in.getInt();
+			CH.LEFT = in.getInt();
+			CH.RIGHT = in.getInt();
+			CH.ALGO = in.getInt(0, 7);
+			CH.FB = in.getInt(0, 31);
+			CH.FMS = in.getInt();
+			CH.AMS = in.getInt(0, 31);
+			in.getIntsInRange(CH.FNUM, 0, 0x7FF);
+			in.getIntsInRange(CH.FOCT, 0, 7);
+			in.getIntsInRange(CH.KC, 0, 31);
+			CH.FFlag = in.getInt();
+			
+			for(int j = 0; j < 4; j++){
+				cSlot SL = CH.SLOT[j];
+				int dt = in.getInt(-1, 7);
+				SL.DT = (dt < 0 ? null : DT_TAB[dt]);
+				SL.MUL = in.getInt();
+				SL.TL = in.getInt();
+				SL.TLL = in.getInt(0, 0x7F << (ENV_HBITS - 7));
+				SL.SLL = in.getInt(0, ENV_END);
+				SL.KSR_S = in.getInt(0, 3);
+				SL.KSR = in.getInt(0, 31);
+				SL.SEG = in.getInt(0, 15);
+				SL.AR = in.getInt(0, AR_NULL_RATE);
+				SL.DR = in.getInt(0, DR_NULL_RATE);
+				SL.SR = in.getInt(0, DR_NULL_RATE);
+				SL.RR = in.getInt(0, DR_NULL_RATE);
+				SL.Fcnt = in.getInt();
+				SL.Finc = in.getInt();
+				SL.Ecurp = in.getInt(ATTACK, RELEASE);
+				SL.Ecnt = in.getInt(0, ENV_END);
+				SL.Einc = in.getInt(0, ENV_END);	// Ecnt + Einc mustn't overflow
+				SL.Ecmp = in.getInt(0, ENV_END + 1);
+				SL.EincA = in.getInt(0, ENV_END);
+				SL.EincD = in.getInt(0, ENV_END);
+				SL.EincS = in.getInt(0, ENV_END);
+				SL.EincR = in.getInt(0, ENV_END);
+				SL.INd = in.getInt();
+				SL.ChgEnM = in.getInt();
+				SL.AMS = in.getInt(0, 31);
+				SL.AMSon = in.getInt();
+			}
+		}
+	}
+	
 	public final int read(){
 		return (YM2612_Status);
 	}
@@ -514,25 +708,7 @@ public final class YM2612
 		offset *= 2;
 		end = end*2 + offset;
 		
-		if(YM2612_CHANNEL[0].SLOT[0].Finc == -1) calc_FINC_CH(YM2612_CHANNEL[0]);
-		if(YM2612_CHANNEL[1].SLOT[0].Finc == -1) calc_FINC_CH(YM2612_CHANNEL[1]);
-		if(YM2612_CHANNEL[2].SLOT[0].Finc == -1)
-		{
-			if( (YM2612_Mode&0x40)!=0 )
-			{
-				calc_FINC_SL((YM2612_CHANNEL[2].SLOT[S0]), FINC_TAB[YM2612_CHANNEL[2].FNUM[2]] >> (7 - YM2612_CHANNEL[2].FOCT[2]), YM2612_CHANNEL[2].KC[2]);
-				calc_FINC_SL((YM2612_CHANNEL[2].SLOT[S1]), FINC_TAB[YM2612_CHANNEL[2].FNUM[3]] >> (7 - YM2612_CHANNEL[2].FOCT[3]), YM2612_CHANNEL[2].KC[3]);
-				calc_FINC_SL((YM2612_CHANNEL[2].SLOT[S2]), FINC_TAB[YM2612_CHANNEL[2].FNUM[1]] >> (7 - YM2612_CHANNEL[2].FOCT[1]), YM2612_CHANNEL[2].KC[1]);
-				calc_FINC_SL((YM2612_CHANNEL[2].SLOT[S3]), FINC_TAB[YM2612_CHANNEL[2].FNUM[0]] >> (7 - YM2612_CHANNEL[2].FOCT[0]), YM2612_CHANNEL[2].KC[0]);
-			}
-			else
-			{
-				calc_FINC_CH(YM2612_CHANNEL[2]);
-			}
-		}
-		if(YM2612_CHANNEL[3].SLOT[0].Finc == -1) calc_FINC_CH(YM2612_CHANNEL[3]);
-		if(YM2612_CHANNEL[4].SLOT[0].Finc == -1) calc_FINC_CH(YM2612_CHANNEL[4]);
-		if(YM2612_CHANNEL[5].SLOT[0].Finc == -1) calc_FINC_CH(YM2612_CHANNEL[5]);
+		for(int i = 0; i < 6; i++) calc_FINC(i);
 
 //		  if(YM2612_Inter_Step & 0x04000) algo_type = 0;
 //		  else algo_type = 16;
@@ -564,6 +740,70 @@ public final class YM2612
 		YM2612_Inter_Cnt = int_cnt;
 	}
 
+	// Renders count samples into buf_lr as update() does, applying queued
+	// writes at the samples they fall on. Write n is at sample writes[n*2]
+	// and is port << 16 | addr << 8 | data in writes[n*2+1], in order of
+	// sample. Each write brings only the channels it affects up to its sample
+	// before being made, so a burst of writes to one channel doesn't render
+	// the other five a sample or two at a time. Output is the same as
+	// calling update() up to each write's sample then making the write.
+	public final void update(int[] buf_lr, int count, int[] writes, int writeCount){
+		for(int n = 0; n < writeCount; n++) WRITE_UP[writes[n*2]] = true;
+		for(int i = 0; i < 6; i++) CHANNEL_POS[i] = 0;
+		LFO_POS = 0;
+		
+		for(int n = 0; n < writeCount; n++){
+			int w = writes[n*2+1];
+			int port = w >> 16;
+			int addr = (w >> 8) & 0xFF;
+			int data = w & 0xFF;
+			updateChannels(buf_lr, writeChannels(port, addr, data), writes[n*2]);
+			if(port == 0) write0(addr, data);
+			else write1(addr, data);
+		}
+		updateChannels(buf_lr, 0x3F, count);
+		
+		for(int n = 0; n < writeCount; n++) WRITE_UP[writes[n*2]] = false;
+		YM2612_Inter_Cnt = int_cnt;
+	}
+	
+	// Bit mask of channels whose output a register write can change
+	private static int writeChannels(int port, int addr, int data){
+		if(addr < 0x30){
+			if(port != 0) return 0;			// ignored by write1()
+			if(addr != 0x28) return 0x3F;	// LFO, timers, mode and DAC enable
+			if((data & 3) == 3) return 0;
+			return 1 << ((data & 3) + ((data & 4) != 0 ? 3 : 0));
+		}
+		if(addr >= 0xA8 && addr < 0xB0)		// channel 3 special mode frequencies
+			return (port == 0) ? (1 << 2) : 0;
+		if(addr >= 0xB8 || (addr & 3) == 3) return 0;
+		return 1 << ((addr & 3) + port * 3);
+	}
+	
+	// Renders channels in mask from where each was left up to sample pos
+	private final void updateChannels(int[] buf_lr, int mask, int pos){
+		int algo_type = 0;
+		if( (YM2612_LFOinc)!=0 ){
+			for(; LFO_POS < pos; LFO_POS++){
+				int j = ((YM2612_LFOcnt += YM2612_LFOinc) >> LFO_LBITS) & LFO_MSK;
+				LFO_ENV_UP[LFO_POS] = LFO_ENV_TAB[j];
+				LFO_FREQ_UP[LFO_POS] = LFO_FREQ_TAB[j];
+			}
+			algo_type |= 8;
+		}
+		else if(LFO_POS < pos) LFO_POS = pos;
+		
+		for(int i = 0; i < 6; i++){
+			int start = CHANNEL_POS[i];
+			if((mask & (1 << i)) == 0 || start >= pos) continue;
+			CHANNEL_POS[i] = pos;
+			calc_FINC(i);
+			if(i != 5 || YM2612_DAC == 0)
+				updateChannel((YM2612_CHANNEL[i].ALGO + algo_type), (YM2612_CHANNEL[i]), buf_lr, start*2, pos*2);
+		}
+	}
+	
 	public final void synchronizeTimers(int length){
 		int i;
 
@@ -593,6 +833,19 @@ public final class YM2612
 	*
 	***********************************************/
 
+	// Recalculates phase steps of channel if a write has invalidated them
+	private final void calc_FINC(int nch){
+		cChannel CH = YM2612_CHANNEL[nch];
+		if(CH.SLOT[0].Finc != -1) return;
+		if(nch == 2 && (YM2612_Mode&0x40)!=0){
+			calc_FINC_SL((CH.SLOT[S0]), FINC_TAB[CH.FNUM[2]] >> (7 - CH.FOCT[2]), CH.KC[2]);
+			calc_FINC_SL((CH.SLOT[S1]), FINC_TAB[CH.FNUM[3]] >> (7 - CH.FOCT[3]), CH.KC[3]);
+			calc_FINC_SL((CH.SLOT[S2]), FINC_TAB[CH.FNUM[1]] >> (7 - CH.FOCT[1]), CH.KC[1]);
+			calc_FINC_SL((CH.SLOT[S3]), FINC_TAB[CH.FNUM[0]] >> (7 - CH.FOCT[0]), CH.KC[0]);
+		}
+		else calc_FINC_CH(CH);
+	}
+	
 	private final void calc_FINC_SL(cSlot SL, int finc, int kc){
 		int ksr;
 		SL.Finc = (finc + SL.DT [kc]) * SL.MUL;
@@ -995,21 +1248,34 @@ public final class YM2612
 		else if(CH.OUTd < -LIMIT_CH_OUT) CH.OUTd = -LIMIT_CH_OUT;			 
 	}
 
+	// True if channel's output slots have all finished their envelopes, so that
+	// it's silent until keyed on. Channel is then no longer rendered, which
+	// leaves its other slots' state as it is for when it's next keyed on.
+	private static boolean channelEnded(cChannel CH, int ALGO){
+		if( ALGO<4 )
+			return CH.SLOT[S3].Ecnt == ENV_END;
+		if( ALGO==4 )
+			return (CH.SLOT[S1].Ecnt == ENV_END) && (CH.SLOT[S3].Ecnt == ENV_END);
+		if( ALGO<7 )
+			return (CH.SLOT[S1].Ecnt == ENV_END) && (CH.SLOT[S2].Ecnt == ENV_END) && (CH.SLOT[S3].Ecnt == ENV_END);
+		return (CH.SLOT[S0].Ecnt==ENV_END) && (CH.SLOT[S1].Ecnt==ENV_END) &&
+				(CH.SLOT[S2].Ecnt==ENV_END) && (CH.SLOT[S3].Ecnt==ENV_END);
+	}
+	
+	// Where rendering must stop after an envelope event at OFFSET. update()
+	// only checks for an ended channel where it starts, so once ended, a
+	// channel keeps going until the next sample a queued write falls on,
+	// where update() used to start before writes were queued.
+	private final int stopAt(cChannel CH, int ALGO, int OFFSET, int END){
+		if(!channelEnded(CH, ALGO)) return END;
+		for(int o = OFFSET + 2; o < END; o += 2)
+			if(WRITE_UP[o >> 1]) return o;
+		return END;
+	}
+	
 	private final void processChannel(cChannel CH, int[] buf_lr, int OFFSET, int END, int ALGO){
-		if( ALGO<4 ){
-			if(CH.SLOT[S3].Ecnt == ENV_END)
-				return;
-		} else if( ALGO==4 ){
-			if((CH.SLOT[S1].Ecnt == ENV_END) && (CH.SLOT[S3].Ecnt == ENV_END))
-				return;
-		} else if( ALGO<7 ){
-			if((CH.SLOT[S1].Ecnt == ENV_END) && (CH.SLOT[S2].Ecnt == ENV_END) && (CH.SLOT[S3].Ecnt == ENV_END))
-				return;
-		} else {
-			if((CH.SLOT[S0].Ecnt==ENV_END)&&(CH.SLOT[S1].Ecnt==ENV_END)&&
-					(CH.SLOT[S2].Ecnt==ENV_END)&&(CH.SLOT[S3].Ecnt==ENV_END))
-				return;
-		}		 
+		if(channelEnded(CH, ALGO))
+			return;
 		
 		do
 		{
@@ -1047,15 +1313,19 @@ public final class YM2612
 			// UPDATE_ENV
 			if((CH.SLOT[S0].Ecnt += CH.SLOT[S0].Einc) >= CH.SLOT[S0].Ecmp){
 				ENV_NEXT_EVENT(CH.SLOT[S0].Ecurp, CH.SLOT[S0]);
+				END = stopAt(CH, ALGO, OFFSET, END);
 			}
 			if((CH.SLOT[S1].Ecnt += CH.SLOT[S1].Einc) >= CH.SLOT[S1].Ecmp){
 				ENV_NEXT_EVENT(CH.SLOT[S1].Ecurp, CH.SLOT[S1]);
+				END = stopAt(CH, ALGO, OFFSET, END);
 			}
 			if((CH.SLOT[S2].Ecnt += CH.SLOT[S2].Einc) >= CH.SLOT[S2].Ecmp){
 				ENV_NEXT_EVENT(CH.SLOT[S2].Ecurp, CH.SLOT[S2]);
+				END = stopAt(CH, ALGO, OFFSET, END);
 			}
 			if((CH.SLOT[S3].Ecnt += CH.SLOT[S3].Einc) >= CH.SLOT[S3].Ecmp){
 				ENV_NEXT_EVENT(CH.SLOT[S3].Ecurp, CH.SLOT[S3]);
+				END = stopAt(CH, ALGO, OFFSET, END);
 			}			 
 			calcChannel(ALGO, CH);
 			//DO_OUTPUT
@@ -1067,20 +1337,8 @@ public final class YM2612
 	}	 
 
 	private final void processChannel_LFO(cChannel CH, int[] buf_lr, int OFFSET, int END, int ALGO){
-		if( ALGO<4 ){
-			if(CH.SLOT[S3].Ecnt == ENV_END)
-				return;
-		} else if( ALGO==4 ){
-			if((CH.SLOT[S1].Ecnt == ENV_END) && (CH.SLOT[S3].Ecnt == ENV_END))
-				return;
-		} else if( ALGO<7 ){
-			if((CH.SLOT[S1].Ecnt == ENV_END) && (CH.SLOT[S2].Ecnt == ENV_END) && (CH.SLOT[S3].Ecnt == ENV_END))
-				return;
-		} else {
-			if((CH.SLOT[S0].Ecnt==ENV_END) && (CH.SLOT[S1].Ecnt==ENV_END) &&
-					(CH.SLOT[S2].Ecnt==ENV_END) && (CH.SLOT[S3].Ecnt==ENV_END))
-				return;
-		}
+		if(channelEnded(CH, ALGO))
+			return;
 		
 		do
 		{
@@ -1129,17 +1387,25 @@ public final class YM2612
 				en3 = ENV_TAB[(CH.SLOT[S3].Ecnt >> ENV_LBITS)] + CH.SLOT[S3].TLL + (env_LFO >> CH.SLOT[S3].AMS);
 			
 			// UPDATE_ENV
-			if((CH.SLOT[S0].Ecnt += CH.SLOT[S0].Einc) >= CH.SLOT[S0].Ecmp)
+			if((CH.SLOT[S0].Ecnt += CH.SLOT[S0].Einc) >= CH.SLOT[S0].Ecmp){
 				ENV_NEXT_EVENT(CH.SLOT[S0].Ecurp, CH.SLOT[S0]);
+				END = stopAt(CH, ALGO, OFFSET, END);
+			}
 			
-			if((CH.SLOT[S1].Ecnt += CH.SLOT[S1].Einc) >= CH.SLOT[S1].Ecmp)
+			if((CH.SLOT[S1].Ecnt += CH.SLOT[S1].Einc) >= CH.SLOT[S1].Ecmp){
 				ENV_NEXT_EVENT(CH.SLOT[S1].Ecurp, CH.SLOT[S1]);
+				END = stopAt(CH, ALGO, OFFSET, END);
+			}
 			
-			if((CH.SLOT[S2].Ecnt += CH.SLOT[S2].Einc) >= CH.SLOT[S2].Ecmp)
+			if((CH.SLOT[S2].Ecnt += CH.SLOT[S2].Einc) >= CH.SLOT[S2].Ecmp){
 				ENV_NEXT_EVENT(CH.SLOT[S2].Ecurp, CH.SLOT[S2]);
+				END = stopAt(CH, ALGO, OFFSET, END);
+			}
 			
-			if((CH.SLOT[S3].Ecnt += CH.SLOT[S3].Einc) >= CH.SLOT[S3].Ecmp)
+			if((CH.SLOT[S3].Ecnt += CH.SLOT[S3].Einc) >= CH.SLOT[S3].Ecmp){
 				ENV_NEXT_EVENT(CH.SLOT[S3].Ecurp, CH.SLOT[S3]);
+				END = stopAt(CH, ALGO, OFFSET, END);
+			}
 			
 			calcChannel(ALGO, CH);
 			//DO_OUTPUT